@@ -0,0 +1,183 @@
+/* File: DirectoryDictionary.java
+ * Author: Don Stokes <myFirstName AT myFullName DOT com>
+ * Purpose:
+ *  Map directory paths to Directory IDs and back.
+ * Operation:
+ *  Each Directory record holds the name of a directory and the ID of its
+ *  parent, so a path is stored once however many files it holds. The root
+ *  of a file system has parent 0 and its full name (like "/").
+ *  A path is resolved one component at a time from its root; IDs and paths
+ *  found are kept in LRU caches, so the walk and the report rarely query
+ *  the database for a directory they have just seen.
+ *  Not thread safe.
+ * Copyright 2019 Don Stokes
+ */
+/*******************************************************************************
+     This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.stokedpenguin.finddupfiles;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class DirectoryDictionary {
+	/** Entries held by each cache */
+	private static final int cacheSize = 64 * 1024;
+	/** SQL for querying a Directory by parent and name */
+	private static final String sqlQuery =
+		"SELECT id FROM Directory WHERE parent_id = ? AND name = ?";
+	/** SQL for inserting a Directory. It has no scan details until scanned. */
+	private static final String sqlInsert =
+		"INSERT INTO Directory(parent_id, name) VALUES(?, ?)";
+	/** SQL for querying the parent and name of a Directory */
+	private static final String sqlName =
+		"SELECT parent_id, name FROM Directory WHERE id = ?";
+	private PreparedStatement stmntQuery;
+	private PreparedStatement stmntInsert;
+	private PreparedStatement stmntName;
+	/** Longest name the Directory table holds */
+	private int maxNameLength;
+	/** Directory IDs by path */
+	private Lru<String, Integer> ids = new Lru<String, Integer>();
+	/** Directory paths by ID */
+	private Lru<Integer, String> paths = new Lru<Integer, String>();
+
+	/**
+	 * Map dropping its least recently used entry beyond cacheSize entries
+	 */
+	private static class Lru<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+
+		Lru() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > cacheSize;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param conn           Connection holding the Directory table
+	 * @param maxNameLength  Longest name the Directory table holds
+	 * @throws Exception
+	 */
+	public DirectoryDictionary(Connection conn, int maxNameLength) throws Exception {
+		this.maxNameLength = maxNameLength;
+		stmntQuery = conn.prepareStatement(sqlQuery);
+		stmntInsert = conn.prepareStatement(sqlInsert, Statement.RETURN_GENERATED_KEYS);
+		stmntName = conn.prepareStatement(sqlName);
+	}
+
+	/**
+	 * Find the Directory ID of a path.
+	 * @param path    Absolute path of directory
+	 * @param create  Insert the missing Directory records of path and its parents
+	 * @return  ID, -1 if not recorded and not created
+	 * @throws Exception
+	 */
+	public int getId(String path, boolean create) throws Exception {
+		Integer id = ids.get(path);
+		if (id != null)
+			return id;
+		Path dir = Paths.get(path);
+		int parentId = 0;
+		String name = path;
+		if (dir.getParent() != null) {
+			parentId = getId(dir.getParent().toString(), create);
+			if (parentId < 0)
+				return -1;
+			name = dir.getFileName().toString();
+		}
+		stmntQuery.setInt   (1, parentId);
+		stmntQuery.setString(2, name);
+		ResultSet rslt = stmntQuery.executeQuery();
+		id = rslt.next() ? rslt.getInt("id") : -1;
+		rslt.close();
+		if (id < 0 && create) {
+			if (name.length() > maxNameLength)
+				throw new Exception("directory name too long: " + path);
+			stmntInsert.setInt   (1, parentId);
+			stmntInsert.setString(2, name);
+			stmntInsert.executeUpdate();
+			rslt = stmntInsert.getGeneratedKeys();
+			rslt.next();
+			id = rslt.getInt(1);
+			rslt.close();
+		}
+		if (id >= 0) {
+			ids.put(path, id);
+			paths.put(id, path);
+		}
+		return id;
+	}
+
+	/**
+	 * Rebuild the path of a Directory.
+	 * @param id  Directory ID
+	 * @return  Absolute path of directory
+	 * @throws Exception  if there is no such Directory
+	 */
+	public String getPath(int id) throws Exception {
+		String path = paths.get(id);
+		if (path != null)
+			return path;
+		stmntName.setInt(1, id);
+		ResultSet rslt = stmntName.executeQuery();
+		if (!rslt.next()) {
+			rslt.close();
+			throw new Exception("directory record not found: " + id);
+		}
+		int parentId = rslt.getInt("parent_id");
+		String name = rslt.getString("name");
+		rslt.close();
+		if (parentId == 0) {
+			path = name;
+		} else {
+			String parent = getPath(parentId);
+			path = parent.endsWith(File.separator) ? parent + name : parent + File.separator + name;
+		}
+		paths.put(id, path);
+		ids.put(path, id);
+		return path;
+	}
+
+	/**
+	 * Forget all cached entries, after Directory records were deleted.
+	 */
+	public void clear() {
+		ids.clear();
+		paths.clear();
+	}
+
+	/**
+	 * Close all open resources
+	 * @throws Exception
+	 */
+	public void close() throws Exception {
+		stmntQuery.close();
+		stmntInsert.close();
+		stmntName.close();
+	}
+}
@@ -0,0 +1,372 @@
+/* File: HashPipeline.java
+ * Author: Don Stokes <myFirstName AT myFullName DOT com>
+ * Purpose:
+ *  Hash files on a pool of worker threads.
+ * Operation:
+ *  The caller submits files from its own thread (producer), one Source
+ *  of files per device.
+ *  Worker threads, each with its own hasher, hash the files.
+ *  Results are handed back on the caller's thread (single writer),
+ *  so database access never leaves the thread that owns the connection.
+ *  Bounded queues keep memory use flat.
+ *  Given Devices, files are queued by device (lanes), each lane with
+ *  its own workers: a spinning disk can be read by one thread while an SSD
+ *  or a network file system is read by many. Each lane is filled from
+ *  the Source of its device as it empties, so a slow device doesn't hold
+ *  up the others.
+ * Copyright 2019 Don Stokes
+ */
+/*******************************************************************************
+     This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.stokedpenguin.finddupfiles;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import com.stokedpenguin.util.FileHasher;
+import com.stokedpenguin.util.Hashers;
+
+public class HashPipeline {
+	/** Milliseconds the producer waits on a full queue before draining results */
+	private static final long pollMillis = 50;
+	/** Device of the files whose device is not known, and of all files without Devices */
+	public static final long unknownDev = -1;
+	/** Marker telling a worker to exit */
+	private static final Job endOfJobs = new Job(-1, null);
+	/** Lanes by device */
+	private LinkedHashMap<Long, Lane> lanes = new LinkedHashMap<Long, Lane>();
+	/**
+	 * Hashed files waiting for the writer.
+	 * Unbounded, but holds no more than the jobs queued in the lanes.
+	 */
+	private BlockingQueue<Job> results = new LinkedBlockingQueue<Job>();
+	/** Count of worker threads of each lane without Devices */
+	private int threads;
+	/** Tells the count of worker threads of a device, null for a single lane */
+	private Devices devices;
+	/** Capacity of the queue of each lane */
+	private int queueSize;
+	/** Hash algorithm name, see Hashers */
+	private String algorithm;
+	/** Computes the hash of a file */
+	private Hashing hashing;
+	/** Records the hash of a file */
+	private Writer writer;
+	/** Count of jobs submitted */
+	private long submitted = 0;
+	/** Count of jobs handed to the writer */
+	private long written = 0;
+
+	/**
+	 * A file to hash and, once hashed, its hash or the error encountered.
+	 * @author don
+	 */
+	public static class Job {
+		private int id;
+		private File file;
+		private byte[] hash = null;
+		private Throwable error = null;
+
+		/**
+		 * Constructor
+		 * @param id    Caller's identifier for the file (database record ID)
+		 * @param file  File to hash
+		 */
+		public Job(int id, File file) {
+			this.id = id;
+			this.file = file;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return  Digest of file, null if hashing failed
+		 */
+		public byte[] getHash() {
+			return hash;
+		}
+
+		/**
+		 * @return  Error encountered while hashing, null if none
+		 */
+		public Throwable getError() {
+			return error;
+		}
+	}
+
+	/**
+	 * Queue and worker threads of a device
+	 */
+	private static class Lane {
+		/** Files waiting for a worker */
+		private BlockingQueue<Job> jobs;
+		private ArrayList<Thread> workers = new ArrayList<Thread>();
+	}
+
+	/**
+	 * Interface for computing a hash
+	 * Implemented by client, called on worker threads
+	 * @author don
+	 */
+	public static interface Hashing {
+		byte[] hash(FileHasher hasher, File file) throws Exception;
+	}
+
+	/**
+	 * Interface for recording a hash
+	 * Implemented by client, called on the producer thread
+	 * @author don
+	 */
+	public static interface Writer {
+		void write(Job job) throws Exception;
+	}
+
+	/**
+	 * Interface for sizing the lane of a device
+	 * Implemented by client, called on the producer thread once per device
+	 * @author don
+	 */
+	public static interface Devices {
+		/**
+		 * @param dev   Device number, unknownDev if not known
+		 * @param file  First file submitted for the device
+		 * @return  Count of worker threads reading the device
+		 * @throws Exception
+		 */
+		int threads(long dev, File file) throws Exception;
+	}
+
+	/**
+	 * Interface for reading the files of a device
+	 * Implemented by client, called on the producer thread
+	 * @author don
+	 */
+	public static interface Source {
+		/**
+		 * @return  Next file to hash, null if none is left
+		 * @throws Exception
+		 */
+		Job next() throws Exception;
+	}
+
+	/**
+	 * Constructor
+	 * All files are queued in one lane.
+	 * @param threads    Count of worker threads
+	 * @param queueSize  Capacity of the queue
+	 * @param algorithm  Hash algorithm name, see Hashers
+	 * @param hashing    Hash computation
+	 * @param writer     Hash recording
+	 * @throws Exception
+	 */
+	public HashPipeline(int threads, int queueSize, String algorithm, Hashing hashing, Writer writer) throws Exception {
+		this.threads = threads;
+		this.queueSize = queueSize;
+		this.algorithm = algorithm;
+		this.hashing = hashing;
+		this.writer = writer;
+	}
+
+	/**
+	 * Constructor
+	 * Files are queued in a lane per device.
+	 * @param devices    Sizes the lane of each device
+	 * @param queueSize  Capacity of the queue of each lane
+	 * @param algorithm  Hash algorithm name, see Hashers
+	 * @param hashing    Hash computation
+	 * @param writer     Hash recording
+	 * @throws Exception
+	 */
+	public HashPipeline(Devices devices, int queueSize, String algorithm, Hashing hashing, Writer writer)
+			throws Exception {
+		this(1, queueSize, algorithm, hashing, writer);
+		this.devices = devices;
+	}
+
+	/**
+	 * Find the lane of a device, starting its worker threads the first time.
+	 * @param dev
+	 * @param file  First file of the device
+	 * @return  Lane
+	 * @throws Exception
+	 */
+	private Lane getLane(long dev, File file) throws Exception {
+		if (devices == null)
+			dev = unknownDev;
+		Lane lane = lanes.get(dev);
+		if (lane != null)
+			return lane;
+		lane = new Lane();
+		lane.jobs = new ArrayBlockingQueue<Job>(queueSize);
+		final BlockingQueue<Job> jobs = lane.jobs;
+		int count = devices == null ? threads : Math.max(1, devices.threads(dev, file));
+		for (int i = 0; i < count; i++) {
+			// Hashers are not thread safe: one per worker
+			final FileHasher hasher = new FileHasher(Hashers.create(algorithm));
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work(jobs, hasher);
+				}
+			}, "hash-" + lanes.size() + "-" + i);
+			worker.setDaemon(true);
+			lane.workers.add(worker);
+			worker.start();
+		}
+		lanes.put(dev, lane);
+		return lane;
+	}
+
+	/**
+	 * Worker thread body.
+	 * @param jobs    Queue of the lane of this worker
+	 * @param hasher  Hasher owned by this worker
+	 */
+	private void work(BlockingQueue<Job> jobs, FileHasher hasher) {
+		try {
+			Job job;
+			while ((job = jobs.take()) != endOfJobs) {
+				try {
+					job.hash = hashing.hash(hasher, job.file);
+				} catch (Throwable t) {
+					job.error = t;
+				}
+				results.put(job);
+			}
+		} catch (InterruptedException e) {
+			// Abandoned by producer
+		}
+	}
+
+	/**
+	 * Queue the files of several devices for hashing, until all are queued.
+	 * Each lane is filled from the source of its device whenever it has room,
+	 * so the files of a fast device are not queued behind those of a slow one.
+	 * Results are written in the meantime.
+	 * @param sources  Files by device
+	 * @throws Exception  from a source or the writer
+	 */
+	public void submit(Map<Long, Source> sources) throws Exception {
+		// Job read from each source that didn't fit its lane yet
+		LinkedHashMap<Long, Job> held = new LinkedHashMap<Long, Job>();
+		ArrayList<Long> open = new ArrayList<Long>(sources.keySet());
+		while (!open.isEmpty()) {
+			boolean queued = false;
+			for (Iterator<Long> it = open.iterator(); it.hasNext();) {
+				Long dev = it.next();
+				Source source = sources.get(dev);
+				Job job = held.remove(dev);
+				if (job == null)
+					job = source.next();
+				if (job == null) {
+					it.remove();
+					continue;
+				}
+				Lane lane = getLane(dev, job.file);
+				while (job != null && lane.jobs.offer(job)) {
+					submitted++;
+					queued = true;
+					job = source.next();
+				}
+				if (job == null)
+					it.remove();
+				else
+					held.put(dev, job);
+			}
+			drain();
+			// Every lane is full
+			if (!queued && !open.isEmpty()) {
+				Job result = results.poll(pollMillis, TimeUnit.MILLISECONDS);
+				if (result != null)
+					write(result);
+			}
+		}
+	}
+
+	/**
+	 * Wait for all submitted files to be hashed and written, then stop the workers.
+	 * @throws Exception  from the writer
+	 */
+	public void finish() throws Exception {
+		for (Lane lane : lanes.values()) {
+			for (int i = 0; i < lane.workers.size(); i++)
+				enqueue(lane, endOfJobs);
+		}
+		while (written < submitted) {
+			Job job = results.poll(pollMillis, TimeUnit.MILLISECONDS);
+			if (job != null)
+				write(job);
+		}
+		for (Lane lane : lanes.values()) {
+			for (Thread worker : lane.workers)
+				worker.join();
+		}
+	}
+
+	/**
+	 * Stop the workers without waiting for queued files.
+	 * Used when the producer fails.
+	 */
+	public void abort() {
+		for (Lane lane : lanes.values()) {
+			for (Thread worker : lane.workers)
+				worker.interrupt();
+		}
+	}
+
+	/**
+	 * Put a job on the queue of a lane, writing results while it is full.
+	 * @param lane
+	 * @param job
+	 * @throws Exception
+	 */
+	private void enqueue(Lane lane, Job job) throws Exception {
+		while (!lane.jobs.offer(job, pollMillis, TimeUnit.MILLISECONDS))
+			drain();
+	}
+
+	/**
+	 * Write all results available without waiting.
+	 * @throws Exception
+	 */
+	private void drain() throws Exception {
+		Job job;
+		while ((job = results.poll()) != null)
+			write(job);
+	}
+
+	/**
+	 * Hand a result to the writer.
+	 * @param job
+	 * @throws Exception
+	 */
+	private void write(Job job) throws Exception {
+		written++;
+		writer.write(job);
+	}
+}
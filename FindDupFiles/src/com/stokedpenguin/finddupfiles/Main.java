@@ -5,9 +5,29 @@
  * Operation:
  *  Prepare database.
  *  Recursively scan each directory from command line.
- *  For each file, create database record with filename, hash, ...
+ *  Directories unchanged since the previous scan are not listed again.
+ *  Directory paths are stored once, as names linked to their parent (see
+ *  DirectoryDictionary).
+ *  For each file, create database record with filename, size, ...
+ *  Hash only the files that share their size with another file.
+ *  Hard links to the same inode are hashed once and reported as HARDLINKS.
+ *  Large files are first hashed on a sample of blocks (partial hash).
+ *  Walking and hashing run on pools of worker threads (see
+ *  ParallelDirectoryWalker and HashPipeline).
+ *  Each scan is journaled (Checkpoint tables) so --resume can continue it.
+ *  With --watch, changes to the trees are then applied as they happen (see
+ *  TreeWatcher).
+ *  The hashes of deleted Files are kept until the next hashing (HashCache),
+ *  so a file moved or renamed gets its hash back without being read again.
+ *  Each File is tagged with the Root (directory from a command line) holding
+ *  it, so the hashing and duplicate queries only cover the roots of the run.
+ *  Entries excluded by the filter options are pruned by the walker (see
+ *  PathFilter): never recorded, and excluded directories never traversed.
+ *  With --server, the database stays open to serve --client requests (see
+ *  QueryServer).
  *  Populate a table with duplicate file IDs and hashes.
  *  Output a line for each duplicate hash containing filenames with that hash.
+ *  With --verify, the files of each hash are compared byte for byte first.
  * Dependencies:
  *  derby (database library)
  * IMPORTANT:
@@ -30,45 +50,310 @@
  ******************************************************************************/
 /*
  * ToDo:
- * + Optimize subsequent runs by not purging database.
- *    - Traverse records and delete records for missing files.
- *    - Traverse files. Add missing files. Update hash on changed files
- * + Add an option to verify duplicates by byte for byte compare.
  * + See if derby classes support new "try-with-resource" java syntax.
  */
 
 package com.stokedpenguin.finddupfiles;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
-import org.apache.derby.shared.common.error.DerbySQLIntegrityConstraintViolationException;
+import java.sql.Types;
 import com.stokedpenguin.util.Util;
-import com.stokedpenguin.util.Md5;
-import com.stokedpenguin.util.file.DirectoryWalker;
+import com.stokedpenguin.util.BatchWriter;
+import com.stokedpenguin.util.ContentComparer;
+import com.stokedpenguin.util.ExternalSorter;
+import com.stokedpenguin.util.FileHasher;
+import com.stokedpenguin.util.Hashers;
+import com.stokedpenguin.util.file.FileIdentity;
+import com.stokedpenguin.util.file.ParallelDirectoryWalker;
+import com.stokedpenguin.util.file.PathFilter;
+import com.stokedpenguin.util.file.StorageDevice;
+import com.stokedpenguin.util.file.TreeWatcher;
 
 public class Main {
 	// Version Numbers
 	private static final int verMajor = 2;
 	private static final int verMinor = 0;
-	/** SQL for inserting record into File table */
+	/** Bytes per block sampled by the partial hash */
+	private static final int partialBlockSize = 64 * 1024;
+	/** Count of blocks sampled between the first and last block by the partial hash */
+	private static final int partialMiddleBlocks = 3;
+	/** Files up to this size are read entirely rather than sampled */
+	private static final long partialMinSize = (long) partialBlockSize * (partialMiddleBlocks + 2);
+	/** Longest file_name the File table holds */
+	private static final int maxNameLength = 256;
+	/** SQL for inserting record into File table. The hash is left pending (NULL). */
 	private static final String sqlFileInsert = 
-		"INSERT INTO File(file_name, path_name, size, modify_time, hash_time, hash)" +
-		" VALUES(?, ?, ?, ?, ?, ?)";
-	/** SQL for querying File by absolute file name */
+		"INSERT INTO File(file_name, dir_id, size, modify_time, dev, ino, root_id)" +
+		" VALUES(?, ?, ?, ?, ?, ?, ?)";
+	/** Records read at once from a directory, see RecordedEntries */
+	private static final int recordPageSize = 1000;
+	/** SQL for querying the next page of the Files of a directory, in name order (FileDir index) */
+	private static final String sqlDirFiles =
+		"SELECT id, file_name, modify_time, dev, ino FROM File WHERE dir_id = ? AND file_name > ?" +
+		" ORDER BY file_name FETCH FIRST " + recordPageSize + " ROWS ONLY";
+	/** SQL for querying the next page of the Directory records of the subdirectories of a Directory */
+	private static final String sqlDirSubdirs =
+		"SELECT id, name FROM Directory WHERE parent_id = ? AND name > ?" +
+		" ORDER BY name FETCH FIRST " + recordPageSize + " ROWS ONLY";
+	/** SQL for counting the File records of a Directory */
+	private static final String sqlDirFileCount =
+		"SELECT COUNT(*) FROM File WHERE dir_id = ?";
+	/** SQL for counting the Directory records of the subdirectories of a Directory */
+	private static final String sqlDirSubdirCount =
+		"SELECT COUNT(*) FROM Directory WHERE parent_id = ?";
+	/** SQL for querying a File by directory and name */
 	private static final String sqlFileQuery =
-		"SELECT * FROM File WHERE path_name = ? AND file_name = ?";
+		"SELECT id, size, modify_time, hash, dev, ino FROM File WHERE dir_id = ? AND file_name = ?";
+	/** SQL for querying Directory details by ID */
+	private static final String sqlDirQuery =
+		"SELECT modify_time, entry_count, scan_time FROM Directory WHERE id = ?";
+	/** SQL for querying the subdirectories of a Directory */
+	private static final String sqlDirChildren =
+		"SELECT id, name FROM Directory WHERE parent_id = ?";
+	/** SQL for updating Directory details */
+	private static final String sqlDirUpdate =
+		"UPDATE Directory SET modify_time = ?, entry_count = ?, scan_time = ? WHERE id = ?";
+	/** SQL for deleting the Files of a Directory */
+	private static final String sqlDirFilesDelete =
+		"DELETE FROM File WHERE dir_id = ?";
+	/** SQL for deleting Directory by ID */
+	private static final String sqlDirDelete =
+		"DELETE FROM Directory WHERE id = ?";
+	/**
+	 * Milliseconds a directory must have been left unmodified before it was
+	 * scanned for its modify time to be trusted. Covers file systems with coarse
+	 * time stamps, where an entry added just after the scan keeps the time stamp.
+	 */
+	private static final long dirTimeMargin = 2000;
 	/** SQL for updating File details */
 	private static final String sqlFileUpdate =
-		"UPDATE File SET size = ?, hash = ?, hash_time = ?, modify_time = ? WHERE id = ?";
+		"UPDATE File SET size = ?, hash = NULL, hash_time = NULL, modify_time = ?, partial_hash = NULL" +
+		", dev = ?, ino = ? WHERE id = ?";
+	/** SQL for recording the identity of a File lacking one (created by a previous version), or outdated */
+	private static final String sqlFileIdentity =
+		"UPDATE File SET dev = ?, ino = ? WHERE id = ?";
+	/** SQL condition: f is the File with the lowest ID among the hard links to its inode */
+	private static final String sqlFirstLink =
+		"NOT EXISTS (SELECT s.id FROM File s WHERE s.dev = f.dev AND s.ino = f.ino AND s.id < f.id)";
+	/** SQL condition: f and g are distinct Files, not hard links to the same inode */
+	private static final String sqlOtherInode =
+		"g.id <> f.id AND (g.ino IS NULL OR f.ino IS NULL OR g.ino <> f.ino OR g.dev <> f.dev)";
+	/**
+	 * SQL condition: the size of f is shared by a File of another inode
+	 * within the scope of g (see inScope).
+	 * A correlated probe of the FileSize index; Derby evaluates a grouped
+	 * IN subquery again for every row, which is quadratic.
+	 */
+	private static final String sqlSizeShared =
+		"EXISTS (SELECT g.id FROM File g WHERE g.size = f.size AND %2$s AND " + sqlOtherInode + ")";
+	/**
+	 * SQL for copying a hash of the current algorithm to the pending hard links
+	 * of its inode, within the scope of f
+	 */
+	private static final String sqlLinkHash =
+		"UPDATE File f SET hash_alg = ?, hash_time = ?, hash = (SELECT MIN(g.hash) FROM File g" +
+		" WHERE g.dev = f.dev AND g.ino = f.ino AND g.hash_alg = ? AND g.hash IS NOT NULL)" +
+		" WHERE %1$s AND f.ino IS NOT NULL AND (f.hash IS NULL OR f.hash_alg <> ?)" +
+		" AND EXISTS (SELECT g.id FROM File g" +
+		" WHERE g.dev = f.dev AND g.ino = f.ino AND g.hash_alg = ? AND g.hash IS NOT NULL)";
+	/** SQL for recording the hash of a pending File */
+	private static final String sqlFileHash =
+		"UPDATE File SET hash = ?, hash_time = ?, hash_alg = ? WHERE id = ?";
+	/**
+	 * SQL for recording the partial hash of a File.
+	 * A full hash computed with another algorithm is discarded, as hash_alg
+	 * applies to both hashes.
+	 */
+	private static final String sqlFilePartial =
+		"UPDATE File SET partial_hash = ?" +
+		", hash = CASE WHEN hash_alg = ? THEN hash ELSE NULL END, hash_alg = ? WHERE id = ?";
+	/**
+	 * SQL for querying large Files lacking a partial hash of the current algorithm
+	 * that share their size with another File. One File per inode.
+	 * The scopes of f and g are formatted in, see inScope, then a condition on the device of f.
+	 */
+	private static final String sqlPartialQuery =
+		"SELECT id, dir_id, file_name FROM File f" +
+		" WHERE %1$s AND (partial_hash IS NULL OR hash_alg <> ?) AND size > ?" +
+		" AND " + sqlSizeShared + " AND " + sqlFirstLink + " AND %3$s";
+	/**
+	 * SQL for querying Files pending a hash of the current algorithm that may have a duplicate:
+	 * small Files sharing their size with another File and
+	 * large Files sharing their size and partial hash with another File.
+	 * One File per inode; the other hard links get its hash through sqlLinkHash.
+	 * The scopes of f and g are formatted in, see inScope, then a condition on the device of f.
+	 */
+	private static final String sqlPendingQuery =
+		"SELECT id, dir_id, file_name FROM File f WHERE %1$s AND (hash IS NULL OR hash_alg <> ?) AND (" +
+		"(size <= ? AND " + sqlSizeShared + ")" +
+		" OR (size > ? AND EXISTS (SELECT id FROM File g WHERE g.size = f.size AND %2$s" +
+		" AND g.partial_hash = f.partial_hash AND g.hash_alg = f.hash_alg AND " + sqlOtherInode + ")))" +
+		" AND " + sqlFirstLink + " AND %3$s";
+	/** SQL for querying the devices of the Files within the scope of f, with a Directory on each */
+	private static final String sqlDevices =
+		"SELECT dev, MIN(dir_id) AS dir_id FROM File f WHERE %1$s GROUP BY dev";
+	/**
+	 * SQL for reading the hashed Files within the scope of f, in no particular order.
+	 * Empty files all share the same hash; they are left out unless requested.
+	 */
+	private static final String sqlHashedQuery =
+		"SELECT id, size, hash, dev, ino FROM File f WHERE %1$s AND hash IS NOT NULL AND size >= ?";
+	/** SQL for reading the Files of a size and hash, anywhere in the index */
+	private static final String sqlHashMatches =
+		"SELECT id, size, hash, dev, ino FROM File WHERE hash = ? AND size = ?";
+	/** SQL for recording a File whose hash is shared by a File of another inode */
+	private static final String sqlDupInsert =
+		"INSERT INTO Duplicate (id, hash) VALUES(?, ?)";
+	/** Bytes of a digest in a sort record, preceded by its length */
+	private static final int sortDigestSize = 32;
+	/** Sort record: size, digest length, digest, dev, ino, id */
+	private static final int sortRecordSize = 8 + 1 + sortDigestSize + 8 + 8 + 8;
+	/** Offset of dev in a sort record; records of a group share the bytes before it */
+	private static final int sortDevOffset = 8 + 1 + sortDigestSize;
+	/** SQL for listing Files having hard links, grouped by inode. The scopes of f and g are formatted in. */
+	private static final String sqlLinkReport =
+		"SELECT f.dev, f.ino, f.dir_id, f.file_name FROM File f" +
+		" WHERE %1$s AND f.ino IS NOT NULL AND f.size >= ? AND EXISTS (SELECT g.id FROM File g" +
+		" WHERE g.dev = f.dev AND g.ino = f.ino AND g.id <> f.id AND %2$s)" +
+		" ORDER BY f.dev, f.ino, f.id";
+	/** SQL for listing the Files of a size and hash, anywhere in the index */
+	private static final String sqlDupGroup =
+		"SELECT id, dir_id, file_name, dev, ino FROM File WHERE hash = ? AND size = ? ORDER BY id";
+	/** SQL for listing duplicate Files grouped by hash and size, as recorded by queryDups() */
+	private static final String sqlDupReport =
+		"SELECT d.hash, f.size, f.dir_id, f.file_name FROM Duplicate d JOIN File f ON f.id = d.id" +
+		" ORDER BY d.hash, f.size, d.id";
+	/** Indexes: table, name, columns */
+	private static final String[][] indexes = {
+		{ "File", "FileHash", "hash" },
+		{ "File", "FileSize", "size, partial_hash" },
+		{ "File", "FileDir", "dir_id, file_name" },
+		{ "File", "FileInode", "dev, ino" },
+		{ "File", "FileRoot", "root_id" },
+		{ "Directory", "DirectoryName", "parent_id, name" },
+	};
+	/** SQL type of digest columns: raw bytes, up to 32 (SHA-256) */
+	private static final String sqlTypeDigest = "VARCHAR(32) FOR BIT DATA";
+	/** Longest filter options recorded, see PathFilter.toString() */
+	private static final int maxFiltersLength = 4000;
+	/** SQL type of filter options; none for the records of previous versions */
+	private static final String sqlTypeFilters = "VARCHAR(" + maxFiltersLength + ") DEFAULT ''";
+	/** SQL for creating the Duplicate table */
+	private static final String sqlTableDuplicate =
+		"CREATE TABLE Duplicate (id INT PRIMARY KEY, hash " + sqlTypeDigest + ")";
+	/** SQL for creating the Directory table */
+	private static final String sqlTableDirectory =
+		"CREATE TABLE Directory (id INT PRIMARY KEY generated always as identity" +
+		", parent_id INT, name VARCHAR(256)" +
+		", modify_time BIGINT, entry_count INT, scan_time BIGINT)";
+	/**
+	 * SQL for creating the Checkpoint table, journaling the scans.
+	 * A scan interrupted before its end_time can be resumed.
+	 */
+	private static final String sqlTableCheckpoint =
+		"CREATE TABLE Checkpoint (id INT PRIMARY KEY generated always as identity" +
+		", start_time BIGINT, end_time BIGINT, refresh SMALLINT, hash_alg VARCHAR(16)" +
+		", filters " + sqlTypeFilters + ")";
+	/** SQL for creating the CheckpointRoot table: the directories of a scan and when each was done */
+	private static final String sqlTableCheckpointRoot =
+		"CREATE TABLE CheckpointRoot (checkpoint_id INT, dir_id INT, done_time BIGINT)";
+	/**
+	 * SQL for creating the Root table: the directories passed on command lines,
+	 * and the filter options their trees were last scanned with
+	 */
+	private static final String sqlTableRoot =
+		"CREATE TABLE Root (id INT PRIMARY KEY generated always as identity, dir_id INT" +
+		", filters " + sqlTypeFilters + ")";
+	/** SQL for querying the Roots whose directory is still recorded */
+	private static final String sqlRootQuery =
+		"SELECT r.id, r.dir_id, r.filters FROM Root r JOIN Directory d ON d.id = r.dir_id";
+	/** SQL for inserting a Root */
+	private static final String sqlRootInsert =
+		"INSERT INTO Root(dir_id, filters) VALUES(?, ?)";
+	/** SQL for recording the filter options a Root was scanned with */
+	private static final String sqlRootFilters =
+		"UPDATE Root SET filters = ? WHERE id = ?";
+	/** SQL for tagging the Files of a Directory with their Root */
+	private static final String sqlDirFilesRoot =
+		"UPDATE File SET root_id = ? WHERE dir_id = ?";
+	/** SQL for querying the last interrupted scan */
+	private static final String sqlCheckpointQuery =
+		"SELECT id, start_time, refresh, hash_alg, filters FROM Checkpoint WHERE end_time IS NULL ORDER BY id DESC";
+	/** SQL for querying the directories of a scan */
+	private static final String sqlCheckpointRoots =
+		"SELECT dir_id, done_time FROM CheckpointRoot WHERE checkpoint_id = ?";
+	/** SQL for journaling the start of a scan */
+	private static final String sqlCheckpointInsert =
+		"INSERT INTO Checkpoint(start_time, refresh, hash_alg, filters) VALUES(?, ?, ?, ?)";
+	/** SQL for journaling a directory of a scan */
+	private static final String sqlCheckpointRootInsert =
+		"INSERT INTO CheckpointRoot(checkpoint_id, dir_id) VALUES(?, ?)";
+	/** SQL for journaling a directory of a scan as done */
+	private static final String sqlCheckpointRootDone =
+		"UPDATE CheckpointRoot SET done_time = ? WHERE checkpoint_id = ? AND dir_id = ?";
+	/** SQL for journaling the end of a scan */
+	private static final String sqlCheckpointDone =
+		"UPDATE Checkpoint SET end_time = ? WHERE id = ?";
 	/** SQL for deleting File by ID */
 	private static final String sqlFileDelete =
 		"DELETE FROM File WHERE id = ?";
+	/**
+	 * SQL for creating the HashCache table: the content identity and hashes of
+	 * the Files deleted since the last hashing, see reuseHashes()
+	 */
+	private static final String sqlTableHashCache =
+		"CREATE TABLE HashCache (dev BIGINT, ino BIGINT, size BIGINT, modify_time BIGINT" +
+		", hash " + sqlTypeDigest + ", partial_hash " + sqlTypeDigest + ", hash_alg VARCHAR(16), hash_time BIGINT)";
+	/** Columns shared by File and HashCache */
+	private static final String sqlCacheColumns =
+		"dev, ino, size, modify_time, hash, partial_hash, hash_alg, hash_time";
+	/** SQL for keeping the hashes of a File about to be deleted */
+	private static final String sqlFileCache =
+		"INSERT INTO HashCache(" + sqlCacheColumns + ") SELECT " + sqlCacheColumns +
+		" FROM File WHERE id = ? AND (hash IS NOT NULL OR partial_hash IS NOT NULL)";
+	/** SQL for keeping the hashes of the Files of a Directory about to be deleted */
+	private static final String sqlDirFilesCache =
+		"INSERT INTO HashCache(" + sqlCacheColumns + ") SELECT " + sqlCacheColumns +
+		" FROM File WHERE dir_id = ? AND (hash IS NOT NULL OR partial_hash IS NOT NULL)";
+	/**
+	 * SQL for querying the new Files having the inode, size and modify time
+	 * of a deleted File: moved or renamed within a file system
+	 */
+	private static final String sqlCacheIdentity =
+		"SELECT f.id, c.hash, c.partial_hash, c.hash_alg, c.hash_time FROM HashCache c" +
+		" JOIN File f ON f.dev = c.dev AND f.ino = c.ino" +
+		" WHERE f.size = c.size AND f.modify_time = c.modify_time AND f.hash IS NULL AND f.partial_hash IS NULL";
+	/**
+	 * SQL for querying the Files pending a full hash having the size, modify
+	 * time and partial hash of a deleted File: moved to another file system
+	 */
+	private static final String sqlCachePartial =
+		"SELECT f.id, c.hash, c.partial_hash, c.hash_alg, c.hash_time FROM HashCache c" +
+		" JOIN File f ON f.size = c.size AND f.partial_hash = c.partial_hash" +
+		" WHERE f.modify_time = c.modify_time AND f.hash_alg = c.hash_alg AND f.hash IS NULL AND c.hash IS NOT NULL";
+	/** SQL for giving a File the hashes of a deleted File */
+	private static final String sqlFileReuse =
+		"UPDATE File SET hash = ?, partial_hash = ?, hash_alg = ?, hash_time = ? WHERE id = ?";
 	/** Name of configuration directory, normally located in HOME directory */
 	private String configDirName = ".finddupfiles";
 	/** Error(s) detected if non-zero */
@@ -77,27 +362,107 @@ public class Main {
 	private int errorCount = 0;
 	/** Directory names to search for duplicate files */
 	private ArrayList<File> dirs = new ArrayList<File>();
-	/** Object for calculating md5 sums */
-	private Md5 md5 = new Md5();
+	/** Count of hashing worker threads */
+	private int threads = Runtime.getRuntime().availableProcessors();
+	/** Count of hashing worker threads of each spinning disk */
+	private int hddThreads = 1;
+	/** Count of hashing worker threads of each network file system */
+	private int netThreads = 4 * threads;
+	/** Read the files of each spinning disk in inode order */
+	private boolean inodeOrder = false;
+	/** Name of hash algorithm, see Hashers */
+	private String hashAlg = Hashers.defaultName;
+	/** Compare the files of each duplicate hash byte for byte before reporting them */
+	private boolean verify = false;
+	/** Bytes of read buffers shared by the files of a group being verified */
+	private static final int verifyMemory = 64 * 1024 * 1024;
+	/** Bytes of records sorted in memory by queryDups(), beyond which they spill to disk */
+	private long sortMemory = 64L * 1024 * 1024;
+	/** Capacity of the hashing queues, per worker thread */
+	private static final int queueSizePerThread = 64;
 	/** Increase output when non-zero */
 	private int verbosity = 0;
 	/** Count of records created */
 	private long recordCount = 0;
 	/** Flag set if a new database was created during this execution */
 	private boolean reportEmpties = false;
+	/** Keep records in memory rather than in the database (see MemoryEngine) */
+	private boolean noDb = false;
 	/** Flag set if database should be purged. */
 	private boolean fresh = false;
+	/** Continue the last interrupted scan rather than starting over */
+	private boolean resume = false;
+	/** hashAlg was given on the command line */
+	private boolean hashAlgGiven = false;
+	/** ID of Checkpoint of the current scan */
+	private int checkpointId = -1;
+	/**
+	 * Start time of the interrupted scan being resumed; the directories it
+	 * scanned since are complete. Long.MAX_VALUE if not resuming.
+	 */
+	private long resumeTime = Long.MAX_VALUE;
+	/** Directory IDs of the directories of the resumed scan already done */
+	private HashSet<Integer> doneRoots = new HashSet<Integer>();
+	/** Root IDs by path of their directory */
+	private HashMap<String, Integer> roots = new HashMap<String, Integer>();
+	/** Filter options the Roots were last scanned with, by ID */
+	private HashMap<Integer, String> rootFilters = new HashMap<Integer, String>();
+	/** Prunes the entries of the trees walked */
+	private PathFilter filter = new PathFilter();
+	/** IDs of the Roots of dirs and of the Roots within them; empty for the whole index */
+	private ArrayList<Integer> scope = new ArrayList<Integer>();
+	/** Match the Files of scope against every File recorded, not only against each other */
+	private boolean wholeIndex = false;
 	/** New database was created for this execution */
 	private boolean newDb = false;
 	/** Database open during execution */
 	private Connection dbConn = null;
 	/** Don't process files. Just report previous result from database. */
 	private boolean reportOnly = false;
+	/** Rows written per commit */
+	private int batchSize = 1000;
+	/** Milliseconds between commits */
+	private int commitMillis = 2000;
+	/** Keep the records up to date after the scan until killed */
+	private boolean watch = false;
+	/** Milliseconds without changes before the changes watched are applied */
+	private int watchMillis = 2000;
+	/** Serve requests after the scan, see QueryServer */
+	private boolean server = false;
+	/** Send the command to a server rather than opening the database */
+	private boolean client = false;
+	/** Ask the server to stop (with client) */
+	private boolean stop = false;
+	/** Loopback port of the server */
+	private int port = QueryServer.defaultPort;
+	/** Files to report the duplicates of, instead of the full report */
+	private ArrayList<File> lookups = new ArrayList<File>();
+	/** Held while using the database once requests are served concurrently */
+	private final Object dbLock = new Object();
+	/** Set under dbLock once the server stops; the database is about to close */
+	private boolean stopping = false;
+	/** Batches and commits updates through the statements below */
+	private BatchWriter batch = null;
+	/** Maps directory paths to Directory IDs */
+	private DirectoryDictionary dictionary = null;
 	// Optimize performance by only creating these statements once
 	private PreparedStatement stmntFileInsert = null;
-	private PreparedStatement stmntFileQuery = null;
+	private PreparedStatement stmntDirFiles = null;
+	private PreparedStatement stmntDirSubdirs = null;
+	private PreparedStatement stmntDirFileCount = null;
+	private PreparedStatement stmntDirSubdirCount = null;
+	private PreparedStatement stmntDirQuery = null;
+	private PreparedStatement stmntDirChildren = null;
+	private PreparedStatement stmntDirUpdate = null;
+	private PreparedStatement stmntDirFilesDelete = null;
+	private PreparedStatement stmntDirDelete = null;
 	private PreparedStatement stmntFileUpdate = null;
+	private PreparedStatement stmntFileIdentity = null;
 	private PreparedStatement stmntFileDelete = null;
+	private PreparedStatement stmntFileCache = null;
+	private PreparedStatement stmntDirFilesCache = null;
+	private PreparedStatement stmntFileHash = null;
+	private PreparedStatement stmntFilePartial = null;
 	/** Text for help command line option */
 	public static final String info =
 		getVersion()+
@@ -106,12 +471,37 @@ public class Main {
 		"Options:\n"+
 		" --help         See this text\n"+
 		" --refresh      Recreate all file records\n"+
+		" --resume       Continue the last interrupted scan, with its directories and options\n"+
 		" --report-only  Don't update. Only output existing records from database.\n"+
+		" --whole-index  Match the directories against every file recorded, not only against each other\n"+
+		" --threads N    Walk and hash on N worker threads (default: processor count)\n"+
+		" --hdd-threads N  Hash the files of each spinning disk on N threads (default: 1)\n"+
+		" --net-threads N  Hash the files of each network file system on N threads (default: 4 x processor count)\n"+
+		" --inode-order  Hash the files of each spinning disk in inode order, to cut seeks\n"+
+		" --hash NAME    Hash algorithm: md5 (default), sha-256 or xxh64\n"+
+		" --batch-size N Commit database updates every N rows (default: 1000)\n"+
+		" --commit-ms T  Commit database updates at least every T milliseconds (default: 2000)\n"+
+		" --sort-memory M  Group duplicates in M MB of memory, spilling to disk beyond (default: 64)\n"+
+		" --verify       Compare files with the same hash byte for byte before reporting them\n"+
+		" --exclude GLOB Skip entries whose name (or path, if GLOB holds a /) matches, like .git or /proc (repeatable)\n"+
+		" --exclude-regex RE  Skip entries whose path holds a match of RE (repeatable)\n"+
+		" --min-size N   Skip files smaller than N bytes (suffix K, M or G for binary multiples)\n"+
+		" --max-size N   Skip files larger than N bytes (suffix K, M or G for binary multiples)\n"+
+		" --type EXT     Only consider files named with extension EXT, like jpg,png (repeatable)\n"+
+		" --one-file-system  Skip directories on another file system than the directory given\n"+
+		" --no-db        Scan in memory only: no database is read or written\n"+
+		" --watch        After the scan, keep the database up to date with changes until killed\n"+
+		" --watch-ms T   Apply the changes watched once quiet for T milliseconds (default: 2000)\n"+
+		" --lookup FILE  Report the duplicates of FILE rather than all duplicates (repeatable)\n"+
+		" --server       After the scan, keep the database open and serve requests on a loopback port\n"+
+		" --client       Send the directories to scan, --lookup or --report-only to the server\n"+
+		" --stop         With --client, stop the server\n"+
+		" --port N       Loopback port of the server (default: " + QueryServer.defaultPort + ")\n"+
 		" --verbose      See extra output on stderr\n"+
 		"Written by Don Stokes <myFirstName AT myFullName DOT com>\n"+
 		"CAUTION: Reported files have same hash. "+
 		"There is a very slight chance the files are different with the same hash. "+
-		"Use the diff utility to be certain.\n"+
+		"Use the diff utility or --verify to be certain, especially with xxh64, which is fast but not cryptographic.\n"+
 		"ABSOLUTELY NO WARRANY! USE AT YOUR OWN RISK!\n"+
 		"See the source code (written in Java) for more information.\n"+
 		"If you find this software useful and would like to make a donation, "+
@@ -148,6 +538,7 @@ public class Main {
 	private Connection makeDbConn() throws Exception {
 		// Prevent derby from pooping derby.log all over the place
 		System.setProperty("derby.system.home", getConfigDir().getAbsolutePath());
+		System.setProperty("derby.stream.error.file", new File(getConfigDir(), "derby.log").getAbsolutePath());
 		File dbDir = new File(getConfigDir().getAbsolutePath() + "/db");
 		newDb = !dbDir.isDirectory();
 		String strConn = "jdbc:derby:" + dbDir.getAbsolutePath() + ";create=true";
@@ -159,16 +550,48 @@ public class Main {
 			System.err.println("... database open.");
 		if (newDb) {
 			createTables();
+		} else {
+			upgradeTables();
 		}
+		createIndexes();
 		stmntFileInsert = dbConn.prepareStatement(sqlFileInsert);
-		stmntFileQuery = dbConn.prepareStatement(sqlFileQuery);
+		stmntDirFiles = dbConn.prepareStatement(sqlDirFiles);
+		stmntDirSubdirs = dbConn.prepareStatement(sqlDirSubdirs);
+		stmntDirFileCount = dbConn.prepareStatement(sqlDirFileCount);
+		stmntDirSubdirCount = dbConn.prepareStatement(sqlDirSubdirCount);
+		stmntDirQuery = dbConn.prepareStatement(sqlDirQuery);
+		stmntDirChildren = dbConn.prepareStatement(sqlDirChildren);
+		stmntDirUpdate = dbConn.prepareStatement(sqlDirUpdate);
+		stmntDirFilesDelete = dbConn.prepareStatement(sqlDirFilesDelete);
+		stmntDirDelete = dbConn.prepareStatement(sqlDirDelete);
 		stmntFileUpdate = dbConn.prepareStatement(sqlFileUpdate);
+		stmntFileIdentity = dbConn.prepareStatement(sqlFileIdentity);
 		stmntFileDelete = dbConn.prepareStatement(sqlFileDelete);
+		stmntFileCache = dbConn.prepareStatement(sqlFileCache);
+		stmntDirFilesCache = dbConn.prepareStatement(sqlDirFilesCache);
+		stmntFileHash = dbConn.prepareStatement(sqlFileHash);
+		stmntFilePartial = dbConn.prepareStatement(sqlFilePartial);
+		batch = new BatchWriter(dbConn, batchSize, commitMillis);
+		dictionary = new DirectoryDictionary(dbConn, maxNameLength);
+		loadRoots();
 		return dbConn;
 	}
 	
 	/**
-	 * Create tables on a new database
+	 * Create tables on a new database.
+	 * A File record with a NULL hash is pending: its size has not been
+	 * shared by another file yet, so it has not been worth reading.
+	 * hash_alg names the algorithm of both hash and partial_hash, so
+	 * records hashed by another algorithm remain valid until rehashed.
+	 * dev and ino identify the inode of a File (NULL if unavailable); hard
+	 * links share them.
+	 * Hashes are stored as raw digests, see sqlTypeDigest.
+	 * A File refers to the Directory holding it (dir_id). A Directory record
+	 * holds its name and the ID of its parent (see DirectoryDictionary), and
+	 * the modify time and count of entries of the directory as of its last
+	 * scan (NULL if never scanned, like the parents of the directories scanned).
+	 * A File also refers to the innermost Root (directory passed on a command
+	 * line) holding it (root_id), so a run can cover its roots only.
 	 * @throws Exception
 	 */
 	private void createTables() throws Exception {
@@ -176,15 +599,19 @@ public class Main {
 			System.err.println("Creating tables ...");
 		String sqlTableFile =
 			"CREATE TABLE File (id INT PRIMARY KEY generated always as identity" +
-			", file_name VARCHAR(256), path_name VARCHAR(2048)" +
+			", file_name VARCHAR(256), dir_id INT" +
 			", size BIGINT" +
 			", modify_time BIGINT, hash_time BIGINT" +
-			", hash VARCHAR(64))";
-		String sqlTableDuplicate =
-				"CREATE TABLE Duplicate (id INT PRIMARY KEY, hash VARCHAR(64))";
+			", hash " + sqlTypeDigest + ", partial_hash " + sqlTypeDigest + ", hash_alg VARCHAR(16)" +
+			", dev BIGINT, ino BIGINT, root_id INT)";
  		Statement stmnt = dbConn.createStatement();
  		stmnt.execute(sqlTableFile);
  		stmnt.execute(sqlTableDuplicate);
+ 		stmnt.execute(sqlTableDirectory);
+ 		stmnt.execute(sqlTableCheckpoint);
+ 		stmnt.execute(sqlTableCheckpointRoot);
+ 		stmnt.execute(sqlTableRoot);
+ 		stmnt.execute(sqlTableHashCache);
  		dbConn.commit();
  		stmnt.close();
 		if (verbosity > 0)
@@ -192,400 +619,2342 @@ public class Main {
 	}
 
 	/**
-	 * Traverse all File records.
-	 * Delete records for files that no longer exist in file system.
-	 * Update file details for any changed files.
-	 * @return  Count of records modified
+	 * Bring a database created by a previous version up to date.
 	 * @throws Exception
 	 */
-	private int updateRecords() throws Exception {
-		int count = 0;
-		Statement stmntAll = dbConn.createStatement();
-		ResultSet rsltAll = stmntAll.executeQuery("SELECT * FROM File");
-		while (rsltAll.next()) {
-			File file = new File(rsltAll.getString("path_name") + "/" + rsltAll.getString("file_name"));
-			if (!file.isFile()) {
-				if (verbosity > 0)
-					System.err.println("DELETED: " +file.getAbsolutePath());
-				stmntFileDelete.setInt(1, rsltAll.getInt("id"));
-				stmntFileDelete.execute();
-				count++;
-			} else if (rsltAll.getLong("modify_time") != file.lastModified()) {
-				if (verbosity > 0)
-					System.err.println("CHANGED: " +file.getAbsolutePath());				
-				stmntFileUpdate.setLong  (1, file.length());
-				stmntFileUpdate.setString(2, md5.md5Sum(file));
-				stmntFileUpdate.setLong  (3, System.currentTimeMillis());
-				stmntFileUpdate.setLong  (4, file.lastModified());
-				stmntFileUpdate.setInt   (5, rsltAll.getInt("id"));
-				stmntFileUpdate.execute();
-				count++;
-			}
+	private void upgradeTables() throws Exception {
+		addColumn("File", "partial_hash", sqlTypeDigest);
+		if (toDigestColumn("File", "hash") | toDigestColumn("File", "partial_hash")) {
+			// Only holds rows of the last report
+			Statement stmnt = dbConn.createStatement();
+			stmnt.execute("DROP TABLE Duplicate");
+			stmnt.execute(sqlTableDuplicate);
+			dbConn.commit();
+			stmnt.close();
 		}
-		dbConn.commit();
-		rsltAll.close();
-		stmntAll.close();
-		return count;
+		// Filled in as the files are scanned again
+		addColumn("File", "dev", "BIGINT");
+		addColumn("File", "ino", "BIGINT");
+		if (addColumn("File", "hash_alg", "VARCHAR(16)")) {
+			// Previous versions only knew MD5
+			Statement stmnt = dbConn.createStatement();
+			stmnt.execute("UPDATE File SET hash_alg = 'md5'");
+			dbConn.commit();
+			stmnt.close();
+		}
+		if (hasColumn("File", "path_name"))
+			toDirectoryIds();
+		createTable("Checkpoint", sqlTableCheckpoint);
+		createTable("CheckpointRoot", sqlTableCheckpointRoot);
+		// Files are tagged once their trees are passed again, see recordRoots()
+		addColumn("File", "root_id", "INT");
+		createTable("Root", sqlTableRoot);
+		addColumn("Root", "filters", sqlTypeFilters);
+		addColumn("Checkpoint", "filters", sqlTypeFilters);
+		createTable("HashCache", sqlTableHashCache);
 	}
-	
+
 	/**
-	 * Traverse directories.
-	 * Query each file for record in database.
-	 * Add records for files not in database.
-	 * @param dir  Parent directory for traversal
-	 * @return
+	 * Create a table unless it is already there.
+	 * @param table  Table name
+	 * @param sql    SQL creating the table
 	 * @throws Exception
 	 */
-	private void insertMissingFiles(File dir) throws Exception {
-		DirectoryWalker dw = new DirectoryWalker(dir.getAbsolutePath());
-		dw.setContinueOnErrors(true);
-		dw.walk(new DirectoryWalker.Notification() {
-			// Unnamed class implementation for Notification interface
-			@Override
-			public boolean onFile(File file) {
-				boolean ret = true;
-				try {
-					stmntFileQuery.setString(1, file.getParent());
-					stmntFileQuery.setString(2, file.getName());
-					ResultSet rslt = stmntFileQuery.executeQuery();
-					if (!rslt.next()) {
-						if (verbosity > 0)
-							System.err.println("NEW: " + file.getAbsolutePath());
-						insertFile(file);
-					}
-					rslt.close();
-				} catch (Throwable t) {
-					ret = false;
-					exitCode = 1;
-					System.err.println(t);
-				}
-				return ret;
-			}
-			@Override
-			public boolean onDir(File file) {
-				// Nothing to do
-				return true;
-			}
-		});
-		errorCount += dw.getErrorCount();
-		if (verbosity > 0) {
-			System.err.println(Long.toString(recordCount) + " records created");
-		}
+	private void createTable(String table, String sql) throws Exception {
+		ResultSet rslt = dbConn.getMetaData().getTables(null, null, table.toUpperCase(), null);
+		boolean found = rslt.next();
+		rslt.close();
+		if (found)
+			return;
+		if (verbosity > 0)
+			System.err.printf("Creating table %s ...\n", table);
+		Statement stmnt = dbConn.createStatement();
+		stmnt.execute(sql);
+		dbConn.commit();
+		stmnt.close();
 	}
-	
+
 	/**
-	 * Delete all records from the specified database table.
-	 * @param table
+	 * Replace the path_name of Files and Directories (previous versions) by
+	 * references to the Directory of each path, see DirectoryDictionary.
+	 * The scan details of the old Directory records are kept.
 	 * @throws Exception
 	 */
-	private void purgeTableRows(String table) throws Exception {
-		if (verbosity > 0)
-			System.err.printf("Purging rows from %s ...\n", table);
-		String sqlDel = "DELETE FROM " + table;
- 		Statement stmnt = dbConn.createStatement();
- 		stmnt.execute(sqlDel);
- 		dbConn.commit();
- 		stmnt.close();
+	private void toDirectoryIds() throws Exception {
 		if (verbosity > 0)
-			System.err.println("... rows purged.");
+			System.err.println("Moving paths to table Directory ...");
+		ResultSet rslt = dbConn.getMetaData().getTables(null, null, "DIRECTORY", null);
+		boolean oldDirs = rslt.next();
+		rslt.close();
+		Statement stmnt = dbConn.createStatement();
+		if (oldDirs)
+			stmnt.execute("RENAME TABLE Directory TO DirectoryOld");
+		stmnt.execute(sqlTableDirectory);
+		stmnt.execute("ALTER TABLE File ADD COLUMN dir_id INT");
+		stmnt.execute("CREATE INDEX DirectoryName ON Directory(parent_id, name)");
+		dbConn.commit();
+		DirectoryDictionary paths = new DirectoryDictionary(dbConn, maxNameLength);
+		BatchWriter converter = new BatchWriter(dbConn, batchSize, commitMillis);
+		if (oldDirs) {
+			PreparedStatement update = dbConn.prepareStatement(sqlDirUpdate);
+			rslt = stmnt.executeQuery("SELECT path_name, modify_time, entry_count, scan_time FROM DirectoryOld");
+			while (rslt.next()) {
+				update.setLong(1, rslt.getLong("modify_time"));
+				update.setInt (2, rslt.getInt("entry_count"));
+				update.setLong(3, rslt.getLong("scan_time"));
+				update.setInt (4, paths.getId(rslt.getString("path_name"), true));
+				converter.add(update);
+			}
+			rslt.close();
+			converter.flush();
+			update.close();
+		}
+		PreparedStatement update = dbConn.prepareStatement("UPDATE File SET dir_id = ? WHERE path_name = ?");
+		rslt = stmnt.executeQuery("SELECT DISTINCT path_name FROM File");
+		while (rslt.next()) {
+			String path = rslt.getString("path_name");
+			update.setInt   (1, paths.getId(path, true));
+			update.setString(2, path);
+			converter.add(update);
+		}
+		rslt.close();
+		converter.flush();
+		update.close();
+		paths.close();
+		if (oldDirs)
+			stmnt.execute("DROP TABLE DirectoryOld");
+		dropIndexes("File", "path_name");
+		stmnt.execute("ALTER TABLE File DROP COLUMN path_name");
+		dbConn.commit();
+		stmnt.close();
 	}
-	
+
 	/**
-	 * Purge all data from the database.
+	 * Create the missing indexes.
+	 * Databases created by previous versions have none.
 	 * @throws Exception
 	 */
-	private void purgeRows() throws Exception {
-		purgeTableRows("Duplicate");
-		purgeTableRows("File");
+	private void createIndexes() throws Exception {
+		HashSet<String> existing = new HashSet<String>();
+		for (String table : new String[] { "FILE", "DIRECTORY" }) {
+			ResultSet rslt = dbConn.getMetaData().getIndexInfo(null, null, table, false, false);
+			while (rslt.next())
+				existing.add(rslt.getString("INDEX_NAME"));
+			rslt.close();
+		}
+		Statement stmnt = dbConn.createStatement();
+		for (String[] index : indexes) {
+			if (existing.contains(index[1].toUpperCase()))
+				continue;
+			if (verbosity > 0)
+				System.err.printf("Creating index %s ...\n", index[1]);
+			stmnt.execute("CREATE INDEX " + index[1] + " ON " + index[0] + "(" + index[2] + ")");
+			dbConn.commit();
+		}
+		stmnt.close();
 	}
-	
+
 	/**
-	 * Query the database for duplicate checksums and report findings.
-	 * @return
+	 * Convert a column of hex hashes (previous versions) to raw digests.
+	 * Derby can't change the type of a column, so the digests are written to
+	 * a new column replacing the old one. Indexes on the old column are
+	 * dropped; createIndexes() recreates them.
+	 * @param table   Table name
+	 * @param column  Column name
+	 * @return  True if the column was converted
 	 * @throws Exception
 	 */
-	public long queryDups() throws Exception{
-		long dupCnt = 0;
-		long srchCnt = 0;
-		
-		// Clear previous list of duplicates
-		purgeTableRows("Duplicate");
-		
-		Statement stmntAll = dbConn.createStatement();
-		ResultSet rsltAll = stmntAll.executeQuery("SELECT * FROM File");
-		PreparedStatement stmntDups = dbConn.prepareStatement("SELECT * FROM File WHERE hash = ?");
-		PreparedStatement stmntDup  = dbConn.prepareStatement("INSERT INTO Duplicate (id, hash) VALUES (?, ?)");
-		while (rsltAll.next()) {
-			if (verbosity > 0 && srchCnt % 1000 == 0)
-				System.err.println(Long.toString(srchCnt) + " records serached.");
-			boolean foundDup = false;
-			stmntDups.setString(1, rsltAll.getString("hash"));
-			ResultSet rsltDups = stmntDups.executeQuery();
-			while (rsltDups.next()) {
-				// Not the same file?
-				if (rsltAll.getLong("id") != rsltDups.getLong("id")) {
-					// Don't report empty files unless requested
-					if (rsltAll.getLong("size") > 0 || reportEmpties) {
-						foundDup = true;
-						if (verbosity > 0) System.err.println(
-							"DUPLICATE: " +
-							rsltAll.getString("path_name") +
-							"/" +
-							rsltAll.getString("file_name") +
-							" " +
-							rsltDups.getString("path_name") +
-							"/" +
-							rsltDups.getString("file_name")
-							);
-						try {
-							stmntDup.setInt   (1, rsltDups.getInt("id"));
-							stmntDup.setString(2, rsltDups.getString("hash"));
-							stmntDup.execute();
-						} catch (DerbySQLIntegrityConstraintViolationException e) {
-							// Intentionally ignored
-						}
-					}
-				}
-			}
-			if (foundDup) {
-				try {
-					stmntDup.setInt   (1, rsltAll.getInt("id"));
-					stmntDup.setString(2, rsltAll.getString("hash"));
-					stmntDup.execute();				
-				} catch (DerbySQLIntegrityConstraintViolationException e) {
-					// Intentionally ignored
-				}
+	private boolean toDigestColumn(String table, String column) throws Exception {
+		ResultSet rslt = dbConn.getMetaData().getColumns(null, null, table.toUpperCase(), column.toUpperCase());
+		boolean hex = rslt.next() && rslt.getInt("DATA_TYPE") == Types.VARCHAR;
+		rslt.close();
+		if (!hex)
+			return false;
+		if (verbosity > 0)
+			System.err.printf("Converting column %s.%s to binary ...\n", table, column);
+		String digestColumn = column + "_digest";
+		addColumn(table, digestColumn, sqlTypeDigest);
+		Statement stmnt = dbConn.createStatement();
+		PreparedStatement update = dbConn.prepareStatement(
+			"UPDATE " + table + " SET " + digestColumn + " = ? WHERE id = ?");
+		BatchWriter converter = new BatchWriter(dbConn, batchSize, commitMillis);
+		rslt = stmnt.executeQuery("SELECT id, " + column + " FROM " + table + " WHERE " + column + " IS NOT NULL");
+		while (rslt.next()) {
+			byte[] digest;
+			try {
+				digest = Util.fromHex(rslt.getString(column));
+			} catch (NumberFormatException e) {
+				// Left NULL: hashed again when needed
+				continue;
 			}
-			rsltDups.close();
-			srchCnt++;
+			update.setBytes(1, digest);
+			update.setInt  (2, rslt.getInt("id"));
+			converter.add(update);
 		}
+		converter.flush();
+		rslt.close();
+		update.close();
+		dropIndexes(table, column);
+		stmnt.execute("ALTER TABLE " + table + " DROP COLUMN " + column);
+		stmnt.execute("RENAME COLUMN " + table + "." + digestColumn + " TO " + column);
 		dbConn.commit();
-		rsltAll.close();
-		stmntDups.close();
-		stmntAll.close();
-
-		return dupCnt;
+		stmnt.close();
+		return true;
 	}
-	
+
 	/**
-	 * Insert a new record into the database for specified file.
-	 * @param file
+	 * Drop the indexes covering a column about to be dropped.
+	 * Dropping the column would narrow rather than drop a multi-column index.
+	 * @param table   Table name
+	 * @param column  Column name
 	 * @throws Exception
 	 */
-	private void insertFile(File file) throws Exception {
-		if (verbosity > 0 && recordCount % 1000 == 0)
-			System.err.println(Long.toString(recordCount) + " records processed.");
-		String hash = null;
-		try {
-			hash = md5.md5Sum(file);
-		} catch (Throwable t) {
-			System.err.println("ERROR: " + t.getMessage());
-			errorCount++;
+	private void dropIndexes(String table, String column) throws Exception {
+		HashSet<String> covering = new HashSet<String>();
+		ResultSet rslt = dbConn.getMetaData().getIndexInfo(null, null, table.toUpperCase(), false, false);
+		while (rslt.next()) {
+			if (column.equalsIgnoreCase(rslt.getString("COLUMN_NAME")))
+				covering.add(rslt.getString("INDEX_NAME"));
 		}
-		if (hash != null) {
-			stmntFileInsert.setString(1, file.getName());
-			stmntFileInsert.setString(2, file.getParent());
-			stmntFileInsert.setLong(  3, file.length());
-			stmntFileInsert.setLong(  4, file.lastModified());
-			stmntFileInsert.setLong(  5, System.currentTimeMillis());
-			stmntFileInsert.setString(6, hash);
-			stmntFileInsert.executeUpdate();
+		rslt.close();
+		Statement stmnt = dbConn.createStatement();
+		for (String index : covering)
+			stmnt.execute("DROP INDEX " + index);
+		stmnt.close();
+	}
+
+	/**
+	 * @param table   Table name
+	 * @param column  Column name
+	 * @return  True if the table has the column
+	 * @throws Exception
+	 */
+	private boolean hasColumn(String table, String column) throws Exception {
+		ResultSet rslt = dbConn.getMetaData().getColumns(null, null, table.toUpperCase(), column.toUpperCase());
+		boolean found = rslt.next();
+		rslt.close();
+		return found;
+	}
+
+	/**
+	 * Add a column to an existing table unless it is already there.
+	 * @param table   Table name
+	 * @param column  Column name
+	 * @param type    SQL type of column
+	 * @return  True if the column was added
+	 * @throws Exception
+	 */
+	private boolean addColumn(String table, String column, String type) throws Exception {
+		boolean found = hasColumn(table, column);
+		if (!found) {
+			if (verbosity > 0)
+				System.err.printf("Adding column %s.%s ...\n", table, column);
+			Statement stmnt = dbConn.createStatement();
+			stmnt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
 			dbConn.commit();
-			recordCount++;
+			stmnt.close();
 		}
+		return !found;
 	}
-	
+
 	/**
-	 * Traverse specified directory and insert a db record for each file.
-	 * Should only be run on a known empty database as it does not check
-	 * for existing records.
-	 * @param dir
-	 * @return
+	 * Traverse a directory and bring the File and Directory records of its
+	 * tree up to date. See Scan.
+	 * @param dir    Parent directory for traversal
+	 * @param fresh  The database holds no records under dir
 	 * @throws Exception
 	 */
-	private void populateDb(File dir) throws Exception {
-		DirectoryWalker dw = new DirectoryWalker(dir.getAbsolutePath());
-		dw.setContinueOnErrors(true);
-		dw.walk(new DirectoryWalker.Notification() {
-			@Override
-			public boolean onFile(File file) {
-				boolean ret = true;
-				try {
-					insertFile(file);
-				} catch (Throwable t) {
-					ret = false;
-					exitCode = 1;
-					System.err.println(t);
-				}
-				return ret;
-			}
-			@Override
-			public boolean onDir(File file) {
-				// Nothing to do
-				return true;
-			}
-		});
+	private void scanDir(File dir, boolean fresh) throws Exception {
+		ParallelDirectoryWalker dw = makeWalker(dir);
+		Scan scan = new Scan(dw, fresh);
+		dw.setLister(scan);
+		try {
+			dw.walk(scan);
+		} finally {
+			scan.close();
+		}
+		batch.flush();
 		errorCount += dw.getErrorCount();
 		if (verbosity > 0) {
 			System.err.println(Long.toString(recordCount) + " records created");
+			System.err.println(Long.toString(scan.unchangedDirs) + " directories unchanged");
+			if (resumeTime != Long.MAX_VALUE)
+				System.err.println(Long.toString(scan.completeDirs) + " directories already scanned");
 		}
 	}
 	
 	/**
-	 * Query distinct hashes and report a line containing each file having that hash
-	 * @param out
-	 * @return
-	 * @throws Exception
+	 * File record, or Directory record of a subdirectory, loaded for comparison
+	 * with the file system.
 	 */
-	private int report(PrintStream out) throws Exception {
-		int hashCnt = 0;
-		String sqlHash = "SELECT DISTINCT hash FROM Duplicate";
-		String sqlFile = "SELECT file_name, path_name FROM File WHERE hash = ?";
-		Statement stmntHash = dbConn.createStatement();
-		PreparedStatement stmntFile = dbConn.prepareStatement(sqlFile);
-		ResultSet rsltHash = stmntHash.executeQuery(sqlHash);
-		while (rsltHash.next()) {
-			hashCnt++;
-			stmntFile.setString(1, rsltHash.getString("hash"));
-			ResultSet rsltFile = stmntFile.executeQuery();
-			int fileCnt = 0;
-			while (rsltFile.next()) {
-				if (fileCnt == 0)
-					out.print("DUPLICATES:");
-				out.print(" ");
-				out.print(rsltFile.getString("path_name"));
-				out.print("/");
-				out.print(rsltFile.getString("file_name"));
-				fileCnt++;
-			}
-			out.println();
-			rsltFile.close();
+	private static class FileRecord {
+		int id;
+		String name;
+		long modifyTime;
+		/** Recorded identity, null if dev and ino are NULL */
+		FileIdentity identity;
+		FileRecord(int id, String name, long modifyTime, FileIdentity identity) {
+			this.id = id;
+			this.name = name;
+			this.modifyTime = modifyTime;
+			this.identity = identity;
 		}
-		rsltHash.close();
-		stmntFile.close();
-		stmntHash.close();
-		dbConn.commit();
-		return hashCnt;
 	}
 
 	/**
-	 * Accessor method for exit code property.
-	 * @return
+	 * Records of a directory being scanned.
 	 */
-	public int getExitCode() {
-		return exitCode;
+	private static class DirState {
+		/** ID of Directory record */
+		int id;
+		/** ID of the Root holding the directory */
+		int rootId;
+		/** Modify time of the directory when it was listed */
+		long modifyTime;
+		/** Time the directory was listed */
+		long scanTime = System.currentTimeMillis();
+		/** Scanned by the interrupted scan being resumed; only its subdirectories are visited */
+		boolean complete = false;
+		/** Count of File and Directory records of its entries */
+		int records = 0;
+		/** Count of records matched to an entry notified */
+		int matched = 0;
+		/** Entries read from the records instead of the file system, null if listed */
+		RecordedEntries recorded = null;
 	}
-	
+
 	/**
-	 * Populate or update the File table.
-	 * @throws Exception
+	 * Entries of a directory read from its records rather than listed: its
+	 * files (unless complete), then its subdirectories, a page at a time in
+	 * name order, so memory use doesn't depend on the size of the directory.
+	 * The walker visits each entry as it is returned; an entry not notified
+	 * by the time the next is asked for is gone, and its records are deleted.
+	 * Used by the walker thread of the directory only.
 	 */
-	private void evaluateDirs() throws Exception {
-		if (newDb || fresh) {
-			// Generate File records for all files traversed
-			if (fresh)
-				purgeRows();
-			for (File dir : dirs) {
-				populateDb(dir);
-			}
-		} else {
-			// Reuse File records from previous execution(s)
-			updateRecords();
-			for (File dir : dirs) {
-				insertMissingFiles(dir);
+	private class RecordedEntries implements Iterable<Path>, Iterator<Path> {
+		private Path dir;
+		private DirState state;
+		/** Reading Directory records, the File records done */
+		private boolean subdirs;
+		/** Records read, in name order */
+		private ArrayList<FileRecord> page = new ArrayList<FileRecord>();
+		/** Index in page of the next record */
+		private int next = 0;
+		/** More records may follow the page */
+		private boolean more = true;
+		/** Record of the entry returned last, null once notified */
+		private FileRecord pending = null;
+
+		RecordedEntries(Path dir, DirState state) {
+			this.dir = dir;
+			this.state = state;
+			subdirs = state.complete;
+		}
+
+		@Override
+		public Iterator<Path> iterator() {
+			return this;
+		}
+
+		@Override
+		public boolean hasNext() {
+			synchronized (Main.this) {
+				try {
+					if (pending != null)
+						deleteEntry(pending, subdirs, dir);
+					pending = null;
+					while (next == page.size()) {
+						if (readPage())
+							continue;
+						if (subdirs)
+							return false;
+						subdirs = true;
+						page.clear();
+						next = 0;
+						more = true;
+					}
+					return true;
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
 			}
-		}		
-	}
-	
-	/**
-	 * Parse the command line parameters.
-	 * @param args
-	 * @return False if execution should be aborted
-	 */
-	private boolean parseArgs(String[] args) {
-		boolean ret = true;
-		if (args.length == 0) {
-			System.err.println("Usage: <executable> [args] <directories>  # Try --help option.");
-			return false;
 		}
-		for (int curArg = 0; curArg < args.length; curArg++) {
-			if (args[curArg].equals("--help")) {
-				System.err.printf(info);
-				ret = false;
-			} else if (args[curArg].equals("--verbose")) {
-					verbosity = 1;
-			} else if (args[curArg].equals("--refresh")) {
-				fresh = true;
-			} else if (args[curArg].equals("--report-only")) {
-				reportOnly = true;
-			} else {
-				File dir = new File(args[curArg]);
-				if (dir.isDirectory())
-					dirs.add(dir);
-				else {
-					exitCode = 1;
-					System.err.println("directory does not exist: " + dir.getAbsolutePath());
+
+		@Override
+		public Path next() {
+			pending = page.get(next++);
+			return dir.resolve(pending.name);
+		}
+
+		/**
+		 * @param name    Name of entry notified
+		 * @param subdir  The entry is a directory
+		 * @return  Record of the entry, null if not recorded as such
+		 */
+		FileRecord match(String name, boolean subdir) {
+			if (pending == null || subdir != subdirs || !pending.name.equals(name))
+				return null;
+			FileRecord record = pending;
+			pending = null;
+			return record;
+		}
+
+		/**
+		 * Read the page of records following the current one.
+		 * @return  False if there are no more
+		 * @throws Exception
+		 */
+		private boolean readPage() throws Exception {
+			if (!more)
+				return false;
+			String after = page.isEmpty() ? "" : page.get(page.size() - 1).name;
+			page.clear();
+			next = 0;
+			PreparedStatement stmnt = subdirs ? stmntDirSubdirs : stmntDirFiles;
+			stmnt.setInt   (1, state.id);
+			stmnt.setString(2, after);
+			ResultSet rslt = stmnt.executeQuery();
+			while (rslt.next()) {
+				if (subdirs) {
+					page.add(new FileRecord(rslt.getInt("id"), rslt.getString("name"), 0, null));
+				} else {
+					page.add(new FileRecord(rslt.getInt("id"), rslt.getString("file_name"),
+						rslt.getLong("modify_time"), getIdentity(rslt)));
 				}
 			}
+			rslt.close();
+			more = page.size() == recordPageSize;
+			return !page.isEmpty();
 		}
-		return ret;
 	}
-	
+
 	/**
-	 * Close all open resources
+	 * Delete the records of a directory entry that is gone.
+	 * @param record  File record, or Directory record of a subdirectory
+	 * @param subdir  The entry was a directory
+	 * @param dir     Directory holding the entry
 	 * @throws Exception
 	 */
-	public void terminate() throws Exception {
-		if (stmntFileDelete != null) {
-			stmntFileDelete.close();
-			stmntFileDelete = null;
+	private void deleteEntry(FileRecord record, boolean subdir, Path dir) throws Exception {
+		if (subdir) {
+			deleteTree(record.id, dir.resolve(record.name).toString());
+			return;
 		}
-		if (stmntFileUpdate != null) {
-			stmntFileUpdate.close();
-			stmntFileUpdate = null;
+		if (verbosity > 0)
+			System.err.println("DELETED: " + dir.resolve(record.name));
+		deleteFile(record.id);
+	}
+
+	/**
+	 * Walker callbacks updating the File and Directory records.
+	 * Before each directory is traversed, its records are counted. If the
+	 * directory modify time matches its Directory record, no entry can have
+	 * been added, removed or renamed since the last scan: the directory is not
+	 * listed, and only the known files and subdirectories are visited, read
+	 * from their records (see RecordedEntries), to check for content changes.
+	 * A directory listed has the record of each entry looked up by name; if
+	 * some records were left unmatched once traversed, they are read again and
+	 * those of the entries gone are deleted.
+	 * Directories already scanned by an interrupted scan being resumed are
+	 * complete: only their subdirectories are visited.
+	 * Callbacks come from the walker threads; the database is not thread safe.
+	 */
+	private class Scan implements ParallelDirectoryWalker.Notification, ParallelDirectoryWalker.Lister {
+		/** Walker notifying this scan, aborted on database errors */
+		private ParallelDirectoryWalker walker;
+		/** No records exist yet; skip loading them */
+		private boolean fresh;
+		/** Directories being traversed, by path */
+		private HashMap<String, DirState> states = new HashMap<String, DirState>();
+		/** See sqlFileQuery */
+		private PreparedStatement stmntFileQuery;
+		/** Count of directories not listed */
+		long unchangedDirs = 0;
+		/** Count of directories skipped as complete by the resumed scan */
+		long completeDirs = 0;
+
+		Scan(ParallelDirectoryWalker walker, boolean fresh) throws Exception {
+			this.walker = walker;
+			this.fresh = fresh;
+			stmntFileQuery = dbConn.prepareStatement(sqlFileQuery);
 		}
-		if (stmntFileQuery != null) {
+
+		void close() throws Exception {
 			stmntFileQuery.close();
-			stmntFileQuery = null;
 		}
-		if (stmntFileInsert != null) {
-			stmntFileInsert.close();
-			stmntFileInsert = null;
+
+		@Override
+		public Iterable<Path> list(Path dir, BasicFileAttributes attrs) throws Exception {
+			String path = dir.toString();
+			DirState state = new DirState();
+			state.modifyTime = attrs.lastModifiedTime().toMillis();
+			synchronized (Main.this) {
+				state.id = dictionary.getId(path, true);
+				state.rootId = getRootId(path);
+				states.put(path, state);
+				if (fresh)
+					return null;
+				state.records = count(stmntDirFileCount, state.id) + count(stmntDirSubdirCount, state.id);
+				boolean unchanged = false;
+				stmntDirQuery.setInt(1, state.id);
+				ResultSet rslt = stmntDirQuery.executeQuery();
+				if (rslt.next()) {
+					long modifyTime = rslt.getLong("modify_time");
+					boolean scanned = !rslt.wasNull();
+					long scanTime = rslt.getLong("scan_time");
+					state.complete = scanned && scanTime >= resumeTime;
+					// Never scanned, records missing for some entries (errors), or entries
+					// recorded with other filter options, also force a listing
+					unchanged = scanned && modifyTime == state.modifyTime
+						&& scanTime - modifyTime > dirTimeMargin
+						&& state.records == rslt.getInt("entry_count")
+						&& filter.toString().equals(rootFilters.get(state.rootId));
+				}
+				rslt.close();
+				if (state.complete) {
+					// Its files were committed with its Directory: not visited again
+					completeDirs++;
+				} else if (!unchanged) {
+					return null;
+				} else {
+					unchangedDirs++;
+				}
+				state.recorded = new RecordedEntries(dir, state);
+				return state.recorded;
+			}
 		}
-		if (dbConn != null) {
-			dbConn.close();
-			dbConn = null;
+
+		/**
+		 * @param stmnt  Counting query of a Directory
+		 * @param id     ID of Directory
+		 * @return  Count
+		 * @throws Exception
+		 */
+		private int count(PreparedStatement stmnt, int id) throws Exception {
+			stmnt.setInt(1, id);
+			ResultSet rslt = stmnt.executeQuery();
+			rslt.next();
+			int count = rslt.getInt(1);
+			rslt.close();
+			return count;
 		}
-	}
 
-	/**
-	 * Guts of the execution.
-	 * Called after initialization.
-	 */
-	public void run() throws Exception {
-		if (!reportOnly) {
-			evaluateDirs();
-			queryDups();
+		/**
+		 * @param state  State of the directory holding file
+		 * @param file   File notified
+		 * @return  Record of file, null if none
+		 * @throws Exception
+		 */
+		private FileRecord matchFile(DirState state, File file) throws Exception {
+			if (state.recorded != null)
+				return state.recorded.match(file.getName(), false);
+			if (state.records == 0)
+				return null;
+			stmntFileQuery.setInt   (1, state.id);
+			stmntFileQuery.setString(2, file.getName());
+			ResultSet rslt = stmntFileQuery.executeQuery();
+			FileRecord record = null;
+			if (rslt.next()) {
+				record = new FileRecord(rslt.getInt("id"), file.getName(), rslt.getLong("modify_time"),
+					getIdentity(rslt));
+				state.matched++;
+			}
+			rslt.close();
+			return record;
 		}
-		report(System.out);
-		if (errorCount > 0) {
-			System.err.printf("%d ERRORS WERE ENCOUNTERED\n", errorCount);
-			exitCode = 1;
+
+		@Override
+		public boolean onFile(File file) {
+			return onFile(file, null);
 		}
-	}	
-	
-	/**
-	 * Constructor for the application.
-	 * @param args Command line parameters
-	 * @throws Exception
-	 */
-	public Main(String[] args) throws Exception {
+
+		@Override
+		public boolean onFile(File file, BasicFileAttributes attrs) {
+			boolean ret = true;
+			synchronized (Main.this) {
+				try {
+					DirState state = states.get(file.getParent());
+					FileRecord record = matchFile(state, file);
+					if (attrs == null)
+						attrs = FileIdentity.readAttributes(file.toPath());
+					if (record == null) {
+						if (verbosity > 0 && !fresh)
+							System.err.println("NEW: " + file.getAbsolutePath());
+						insertFile(state.id, state.rootId, file, attrs);
+					} else if (record.modifyTime != attrs.lastModifiedTime().toMillis()) {
+						if (verbosity > 0)
+							System.err.println("CHANGED: " + file.getAbsolutePath());
+						updateFile(record.id, file, attrs);
+					} else {
+						// None recorded by a previous version, or that of the target of a symbolic link
+						FileIdentity identity = FileIdentity.of(file.toPath(), attrs);
+						if (identity != null && (record.identity == null
+								|| identity.getDev() != record.identity.getDev()
+								|| identity.getIno() != record.identity.getIno())) {
+							stmntFileIdentity.setLong(1, identity.getDev());
+							stmntFileIdentity.setLong(2, identity.getIno());
+							stmntFileIdentity.setInt (3, record.id);
+							batch.add(stmntFileIdentity);
+						}
+					}
+				} catch (Throwable t) {
+					ret = false;
+					exitCode = 1;
+					System.err.println(t);
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		public boolean onDir(File file) {
+			return onDir(file, null);
+		}
+
+		@Override
+		public boolean onDir(File file, BasicFileAttributes attrs) {
+			boolean ret = true;
+			synchronized (Main.this) {
+				try {
+					DirState state = states.get(file.getParent());
+					// Recorded with its parent, so a resumed scan finds it from there
+					if (state.recorded != null) {
+						if (state.recorded.match(file.getName(), true) == null)
+							dictionary.getId(file.getPath(), true);
+					} else if (state.records > 0 && dictionary.getId(file.getPath(), false) >= 0) {
+						state.matched++;
+					} else {
+						dictionary.getId(file.getPath(), true);
+					}
+				} catch (Throwable t) {
+					// Skipping the directory would leave its records behind as deleted
+					walker.abort();
+					ret = false;
+					exitCode = 1;
+					System.err.println(t);
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		public void onDirDone(File dir, int entries) {
+			synchronized (Main.this) {
+				DirState state = states.remove(dir.getPath());
+				try {
+					if (state.recorded == null && state.matched < state.records)
+						deleteGone(dir.toPath(), state);
+					// Only its subdirectories were visited
+					if (state.complete)
+						return;
+					// Recorded last, so an interrupted scan lists the directory again
+					stmntDirUpdate.setLong(1, state.modifyTime);
+					stmntDirUpdate.setInt (2, entries);
+					stmntDirUpdate.setLong(3, state.scanTime);
+					stmntDirUpdate.setInt (4, state.id);
+					batch.add(stmntDirUpdate);
+				} catch (Throwable t) {
+					exitCode = 1;
+					System.err.println(t);
+				}
+			}
+		}
+
+		/**
+		 * Delete the records of the entries of a listed directory that are gone.
+		 * Each record is read again and checked against the file system.
+		 * @param dir
+		 * @param state  State of dir, its traversal done
+		 * @throws Exception
+		 */
+		private void deleteGone(Path dir, DirState state) throws Exception {
+			RecordedEntries records = new RecordedEntries(dir, state);
+			while (records.hasNext()) {
+				Path path = records.next();
+				if (isNotified(path, records.subdirs))
+					records.match(path.getFileName().toString(), records.subdirs);
+			}
+		}
+
+		/**
+		 * @param path    Entry of a directory
+		 * @param subdir  Checked as a directory rather than a file
+		 * @return  True if the walker notifies the entry as such
+		 * @throws Exception
+		 */
+		private boolean isNotified(Path path, boolean subdir) throws Exception {
+			ParallelDirectoryWalker.Filter filter = walker.getFilter();
+			if (filter != null && !filter.acceptPath(path))
+				return false;
+			BasicFileAttributes attrs;
+			try {
+				attrs = FileIdentity.readAttributes(path);
+			} catch (NoSuchFileException e) {
+				return false;
+			}
+			if (filter != null && !filter.accept(path, attrs))
+				return false;
+			return subdir ? attrs.isDirectory() && !attrs.isSymbolicLink() : attrs.isRegularFile();
+		}
+	}
+
+	/**
+	 * Delete the File and Directory records of a directory tree.
+	 * @param id    ID of Directory of top directory
+	 * @param path  Top directory of tree
+	 * @throws Exception
+	 */
+	private void deleteTree(int id, String path) throws Exception {
+		if (verbosity > 0)
+			System.err.println("DELETED: " + path + "/");
+		ArrayList<Integer> tree = new ArrayList<Integer>();
+		tree.add(id);
+		for (int i = 0; i < tree.size(); i++) {
+			stmntDirChildren.setInt(1, tree.get(i));
+			ResultSet rslt = stmntDirChildren.executeQuery();
+			while (rslt.next())
+				tree.add(rslt.getInt("id"));
+			rslt.close();
+			// Executed first, as it joins the batch first
+			stmntDirFilesCache.setInt(1, tree.get(i));
+			batch.add(stmntDirFilesCache);
+			stmntDirFilesDelete.setInt(1, tree.get(i));
+			batch.add(stmntDirFilesDelete);
+			stmntDirDelete.setInt(1, tree.get(i));
+			batch.add(stmntDirDelete);
+		}
+		dictionary.clear();
+	}
+	
+	/**
+	 * Delete a File record, keeping its hashes in HashCache (see reuseHashes()).
+	 * @param id  ID of File
+	 * @throws Exception
+	 */
+	private void deleteFile(int id) throws Exception {
+		// Executed first, as it joins the batch first
+		stmntFileCache.setInt(1, id);
+		batch.add(stmntFileCache);
+		stmntFileDelete.setInt(1, id);
+		batch.add(stmntFileDelete);
+	}
+
+	/**
+	 * Create a walker traversing directories on the worker threads.
+	 * @param dir  Parent directory for traversal
+	 * @return
+	 * @throws Exception
+	 */
+	private ParallelDirectoryWalker makeWalker(File dir) throws Exception {
+		ParallelDirectoryWalker dw = new ParallelDirectoryWalker(dir.getAbsolutePath());
+		dw.setContinueOnErrors(true);
+		dw.setParallelism(threads);
+		if (!filter.isEmpty())
+			dw.setFilter(filter.within(dir.toPath()));
+		return dw;
+	}
+
+	/**
+	 * Size the hashing lane of each device by the kind of storage holding it:
+	 * a spinning disk is read by hddThreads, so it streams rather than seeks,
+	 * a network file system by netThreads, to hide its latency, and other
+	 * devices by threads.
+	 * @return  Devices for HashPipeline
+	 */
+	private HashPipeline.Devices makeDevices() {
+		return new HashPipeline.Devices() {
+			@Override
+			public int threads(long dev, File file) throws Exception {
+				if (dev == HashPipeline.unknownDev) {
+					if (verbosity > 0)
+						System.err.printf("unknown device: %d hash threads\n", threads);
+					return threads;
+				}
+				StorageDevice.Kind kind = StorageDevice.classify(file.toPath(), dev);
+				int count = threads;
+				if (kind == StorageDevice.Kind.ROTATIONAL)
+					count = hddThreads;
+				else if (kind == StorageDevice.Kind.NETWORK)
+					count = netThreads;
+				if (verbosity > 0)
+					System.err.printf("device %d:%d (%s): %d hash threads\n", StorageDevice.getMajor(dev),
+						StorageDevice.getMinor(dev), kind.toString().toLowerCase(), count);
+				return count;
+			}
+		};
+	}
+	
+	/**
+	 * Delete all records from the specified database table.
+	 * Left uncommitted.
+	 * @param table
+	 * @throws Exception
+	 */
+	private void purgeTableRows(String table) throws Exception {
+		if (verbosity > 0)
+			System.err.printf("Purging rows from %s ...\n", table);
+		String sqlDel = "DELETE FROM " + table;
+ 		Statement stmnt = dbConn.createStatement();
+ 		stmnt.execute(sqlDel);
+ 		stmnt.close();
+		if (verbosity > 0)
+			System.err.println("... rows purged.");
+	}
+	
+	/**
+	 * Purge all data from the database.
+	 * Left uncommitted, to be committed with the start of the new scan.
+	 * @throws Exception
+	 */
+	private void purgeRows() throws Exception {
+		purgeTableRows("Duplicate");
+		purgeTableRows("Root");
+		purgeTableRows("HashCache");
+		purgeTableRows("Directory");
+		purgeTableRows("File");
+		dictionary.clear();
+		roots.clear();
+		rootFilters.clear();
+	}
+
+	/**
+	 * Load the Roots.
+	 * @throws Exception
+	 */
+	private void loadRoots() throws Exception {
+		Statement stmnt = dbConn.createStatement();
+		ResultSet rslt = stmnt.executeQuery(sqlRootQuery);
+		while (rslt.next()) {
+			roots.put(dictionary.getPath(rslt.getInt("dir_id")), rslt.getInt("id"));
+			rootFilters.put(rslt.getInt("id"), rslt.getString("filters"));
+		}
+		rslt.close();
+		stmnt.close();
+		dbConn.commit();
+	}
+
+	/**
+	 * Record a Root for each of dirs not recorded yet and set the scope of
+	 * the run: the Roots of dirs and the Roots within them.
+	 * The Files of the tree of a new Root are tagged with it, except those
+	 * within another Root: each File belongs to the innermost Root holding it.
+	 * A new Root takes the filter options of the Root that held its Files.
+	 * Committed with the tags, so an interrupted run leaves no Root half tagged.
+	 * @throws Exception
+	 */
+	private void recordRoots() throws Exception {
+		PreparedStatement insert = dbConn.prepareStatement(sqlRootInsert, Statement.RETURN_GENERATED_KEYS);
+		PreparedStatement tag = dbConn.prepareStatement(sqlDirFilesRoot);
+		for (File dir : dirs) {
+			String path = dir.getAbsolutePath();
+			if (roots.containsKey(path))
+				continue;
+			int dirId = dictionary.getId(path, true);
+			String filters = rootFilters.get(getRootId(path));
+			if (filters == null)
+				filters = "";
+			insert.setInt   (1, dirId);
+			insert.setString(2, filters);
+			insert.executeUpdate();
+			ResultSet rslt = insert.getGeneratedKeys();
+			rslt.next();
+			int rootId = rslt.getInt(1);
+			rslt.close();
+			// Directories of the Roots within the new one, left as they are
+			HashSet<Integer> inner = new HashSet<Integer>();
+			for (String root : roots.keySet()) {
+				if (Paths.get(root).startsWith(path))
+					inner.add(dictionary.getId(root, true));
+			}
+			roots.put(path, rootId);
+			rootFilters.put(rootId, filters);
+			ArrayList<Integer> tree = new ArrayList<Integer>();
+			tree.add(dirId);
+			for (int i = 0; i < tree.size(); i++) {
+				stmntDirChildren.setInt(1, tree.get(i));
+				rslt = stmntDirChildren.executeQuery();
+				while (rslt.next()) {
+					if (!inner.contains(rslt.getInt("id")))
+						tree.add(rslt.getInt("id"));
+				}
+				rslt.close();
+				tag.setInt(1, rootId);
+				tag.setInt(2, tree.get(i));
+				tag.executeUpdate();
+			}
+			if (verbosity > 0)
+				System.err.printf("New root %s: %d directories already recorded\n", path, tree.size() - 1);
+		}
+		dbConn.commit();
+		tag.close();
+		insert.close();
+		scope.clear();
+		for (File dir : dirs) {
+			for (Map.Entry<String, Integer> root : roots.entrySet()) {
+				if (Paths.get(root.getKey()).startsWith(dir.getAbsolutePath()) && !scope.contains(root.getValue()))
+					scope.add(root.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Record the filter options the Roots of the scope were scanned with.
+	 * @throws Exception
+	 */
+	private void recordFilters() throws Exception {
+		PreparedStatement stmnt = dbConn.prepareStatement(sqlRootFilters);
+		for (int id : scope) {
+			stmnt.setString(1, filter.toString());
+			stmnt.setInt   (2, id);
+			stmnt.executeUpdate();
+			rootFilters.put(id, filter.toString());
+		}
+		dbConn.commit();
+		stmnt.close();
+	}
+
+	/**
+	 * @param path  Absolute path of directory
+	 * @return  ID of the innermost Root holding the directory, -1 if none
+	 */
+	private int getRootId(String path) {
+		for (Path dir = Paths.get(path); dir != null; dir = dir.getParent()) {
+			Integer id = roots.get(dir.toString());
+			if (id != null)
+				return id;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param alias  Correlation name of File in a query
+	 * @return  SQL condition: the File is within the scope of the run
+	 */
+	private String inScope(String alias) {
+		if (scope.isEmpty())
+			return "1 = 1";
+		StringBuilder ids = new StringBuilder();
+		for (int id : scope)
+			ids.append(ids.length() == 0 ? "" : ", ").append(id);
+		return alias + ".root_id IN (" + ids + ")";
+	}
+
+	/**
+	 * @param alias  Correlation name of File in a query
+	 * @return  SQL condition: the File is within the scope of the run, or
+	 *  anywhere with wholeIndex
+	 */
+	private String inMatchScope(String alias) {
+		return wholeIndex ? "1 = 1" : inScope(alias);
+	}
+	
+	/**
+	 * Query the database for duplicate checksums and record them in the Duplicate table.
+	 * The hashed Files of the scope are read in one scan and grouped by size
+	 * and hash with an external sort, so memory use is bounded (sortMemory)
+	 * however many Files there are. Sorting by dev, ino and id next puts
+	 * the hard links of an inode together; only the first is recorded.
+	 * With wholeIndex, the sizes and hashes of the scope are sorted first,
+	 * then each is looked up in the whole index (FileHash index) and the
+	 * Files found are sorted; each sort gets half of sortMemory.
+	 * @return  Count of files having a duplicate
+	 * @throws Exception
+	 */
+	public long queryDups() throws Exception{
+		// Clear previous list of duplicates
+		purgeTableRows("Duplicate");
+		
+		long dupCnt = 0;
+		boolean matching = wholeIndex && !scope.isEmpty();
+		long memory = matching ? sortMemory / 2 : sortMemory;
+		ExternalSorter sorter = new ExternalSorter(sortRecordSize, memory, getConfigDir());
+		// Sizes and hashes of the scope, the leading bytes of sort records
+		ExternalSorter keys = matching ? new ExternalSorter(sortDevOffset, memory, getConfigDir()) : null;
+		try {
+			PreparedStatement stmnt = dbConn.prepareStatement(String.format(sqlHashedQuery, inScope("f")));
+			// Don't report empty files unless requested
+			stmnt.setLong(1, reportEmpties ? 0 : 1);
+			ResultSet rslt = stmnt.executeQuery();
+			byte[] record = new byte[sortRecordSize];
+			while (rslt.next()) {
+				toSortRecord(rslt, record);
+				if (matching)
+					keys.add(record);
+				else
+					sorter.add(record);
+			}
+			rslt.close();
+			stmnt.close();
+			if (matching)
+				matchIndex(keys.sort(), sorter);
+			dbConn.commit();
+			dupCnt = recordDups(sorter.sort());
+			if (verbosity > 0 && sorter.getRunCount() > 0)
+				System.err.printf("%d sort runs spilled to disk\n", sorter.getRunCount());
+		} finally {
+			sorter.close();
+			if (keys != null)
+				keys.close();
+		}
+		if (verbosity > 0)
+			System.err.println(Long.toString(dupCnt) + " files have a duplicate");
+		return dupCnt;
+	}
+
+	/**
+	 * Look up each distinct size and hash in the whole index and add the Files found.
+	 * @param keys    Sizes and hashes in order, see sortDevOffset
+	 * @param sorter  Receives the sort records of the Files found
+	 * @throws Exception
+	 */
+	private void matchIndex(ExternalSorter.Reader keys, ExternalSorter sorter) throws Exception {
+		PreparedStatement stmntMatches = dbConn.prepareStatement(sqlHashMatches);
+		byte[] key = new byte[sortDevOffset];
+		byte[] prev = new byte[sortDevOffset];
+		boolean first = true;
+		byte[] record = new byte[sortRecordSize];
+		while (keys.next(key)) {
+			if (!first && ExternalSorter.compare(key, 0, prev, 0, sortDevOffset) == 0)
+				continue;
+			first = false;
+			// Includes the Files of the scope
+			stmntMatches.setBytes(1, Arrays.copyOfRange(key, 9, 9 + key[8]));
+			stmntMatches.setLong (2, ExternalSorter.getLong(key, 0));
+			ResultSet matches = stmntMatches.executeQuery();
+			while (matches.next()) {
+				toSortRecord(matches, record);
+				sorter.add(record);
+			}
+			matches.close();
+			byte[] swap = prev;
+			prev = key;
+			key = swap;
+		}
+		stmntMatches.close();
+	}
+
+	/**
+	 * Fill a sort record from the current row of a query.
+	 * @param rslt    Row holding id, size, hash, dev and ino
+	 * @param record  Receives the sort record, see sortRecordSize
+	 * @throws Exception
+	 */
+	private static void toSortRecord(ResultSet rslt, byte[] record) throws Exception {
+		byte[] hash = rslt.getBytes("hash");
+		int id = rslt.getInt("id");
+		Arrays.fill(record, (byte) 0);
+		ExternalSorter.putLong(record, 0, rslt.getLong("size"));
+		record[8] = (byte) hash.length;
+		System.arraycopy(hash, 0, record, 9, Math.min(hash.length, sortDigestSize));
+		long ino = rslt.getLong("ino");
+		if (rslt.wasNull()) {
+			// Without identity, every File is an inode of its own
+			ExternalSorter.putLong(record, sortDevOffset, Long.MIN_VALUE);
+			ExternalSorter.putLong(record, sortDevOffset + 8, -id);
+		} else {
+			ExternalSorter.putLong(record, sortDevOffset, rslt.getLong("dev"));
+			ExternalSorter.putLong(record, sortDevOffset + 8, ino);
+		}
+		ExternalSorter.putLong(record, sortDevOffset + 16, id);
+	}
+
+	/**
+	 * Record the first File of each inode of the groups of sorted records
+	 * having several inodes.
+	 * @param sorted  Sort records, see queryDups()
+	 * @return  Count of files recorded
+	 * @throws Exception
+	 */
+	private long recordDups(ExternalSorter.Reader sorted) throws Exception {
+		long dupCnt = 0;
+		PreparedStatement stmntDups = dbConn.prepareStatement(sqlDupInsert);
+		byte[] record = new byte[sortRecordSize];
+		byte[] prev = new byte[sortRecordSize];
+		// First inode of the current group, recorded once a second one shows up
+		byte[] first = new byte[sortRecordSize];
+		int inodes = 0;
+		while (sorted.next(record)) {
+			if (inodes == 0 || ExternalSorter.compare(record, 0, prev, 0, sortDevOffset) != 0) {
+				// New group
+				System.arraycopy(record, 0, first, 0, sortRecordSize);
+				inodes = 1;
+			} else if (ExternalSorter.compare(record, sortDevOffset, prev, sortDevOffset, 16) != 0) {
+				// New inode in group
+				if (++inodes == 2) {
+					insertDup(stmntDups, first);
+					dupCnt++;
+				}
+				insertDup(stmntDups, record);
+				dupCnt++;
+			}
+			byte[] swap = prev;
+			prev = record;
+			record = swap;
+		}
+		batch.flush();
+		stmntDups.close();
+		return dupCnt;
+	}
+
+	/**
+	 * Record a File in the Duplicate table.
+	 * @param stmntDups  See sqlDupInsert
+	 * @param record     Sort record of File
+	 * @throws Exception
+	 */
+	private void insertDup(PreparedStatement stmntDups, byte[] record) throws Exception {
+		stmntDups.setInt  (1, (int) ExternalSorter.getLong(record, sortDevOffset + 16));
+		stmntDups.setBytes(2, Arrays.copyOfRange(record, 9, 9 + record[8]));
+		batch.add(stmntDups);
+	}
+	
+	/**
+	 * Insert a new record into the database for specified file.
+	 * Only the file metadata is recorded; the hash stays pending until
+	 * hashPending() finds another file of the same size.
+	 * The record is committed with the current batch.
+	 * @param dirId  ID of Directory of file
+	 * @param rootId  ID of Root holding file
+	 * @param file
+	 * @param attrs  Attributes of file as read by the walker, null to read them now
+	 * @throws Exception
+	 */
+	private void insertFile(int dirId, int rootId, File file, BasicFileAttributes attrs) throws Exception {
+		if (verbosity > 0 && recordCount % 1000 == 0)
+			System.err.println(Long.toString(recordCount) + " records processed.");
+		// Would fail the whole batch
+		if (file.getName().length() > maxNameLength) {
+			System.err.println("ERROR: name too long for database: " + file.getAbsolutePath());
+			errorCount++;
+			return;
+		}
+		if (attrs == null)
+			attrs = FileIdentity.readAttributes(file.toPath());
+		stmntFileInsert.setString(1, file.getName());
+		stmntFileInsert.setInt(   2, dirId);
+		stmntFileInsert.setLong(  3, attrs.size());
+		stmntFileInsert.setLong(  4, attrs.lastModifiedTime().toMillis());
+		setIdentity(stmntFileInsert, 5, file, attrs);
+		if (rootId < 0)
+			stmntFileInsert.setNull(7, Types.INTEGER);
+		else
+			stmntFileInsert.setInt(7, rootId);
+		batch.add(stmntFileInsert);
+		recordCount++;
+	}
+
+	/**
+	 * Update the record of a file whose content changed.
+	 * It goes back to pending until its size is evaluated.
+	 * @param id     ID of File record
+	 * @param file
+	 * @param attrs  Attributes of file
+	 * @throws Exception
+	 */
+	private void updateFile(int id, File file, BasicFileAttributes attrs) throws Exception {
+		stmntFileUpdate.setLong(1, attrs.size());
+		stmntFileUpdate.setLong(2, attrs.lastModifiedTime().toMillis());
+		// May have been replaced by another inode
+		setIdentity(stmntFileUpdate, 3, file, attrs);
+		stmntFileUpdate.setInt (5, id);
+		batch.add(stmntFileUpdate);
+	}
+
+	/**
+	 * Set the dev and ino parameters of a statement.
+	 * @param stmnt
+	 * @param index  Index of dev parameter, followed by ino
+	 * @param file
+	 * @param attrs  Attributes of file, carrying its identity if read by the walker
+	 * @throws Exception
+	 */
+	private static void setIdentity(PreparedStatement stmnt, int index, File file, BasicFileAttributes attrs) throws Exception {
+		FileIdentity identity = FileIdentity.of(file.toPath(), attrs);
+		if (identity == null) {
+			stmnt.setNull(index, Types.BIGINT);
+			stmnt.setNull(index + 1, Types.BIGINT);
+		} else {
+			stmnt.setLong(index, identity.getDev());
+			stmnt.setLong(index + 1, identity.getIno());
+		}
+	}
+
+	/**
+	 * @param rslt  Current row holding the dev and ino columns
+	 * @return  Identity recorded, null if none
+	 * @throws Exception
+	 */
+	private static FileIdentity getIdentity(ResultSet rslt) throws Exception {
+		long dev = rslt.getLong("dev");
+		long ino = rslt.getLong("ino");
+		if (rslt.wasNull())
+			return null;
+		return new FileIdentity(dev, ino);
+	}
+	
+	/**
+	 * Compute the hash of every pending file that may have a duplicate.
+	 * Files with a unique size cannot have a duplicate, so they stay pending
+	 * and are never read. Large files sharing a size are first sampled by a
+	 * partial hash and only read entirely when the partial hash is shared too.
+	 * Each inode is read once; its other hard links get a copy of its hash.
+	 * Only the Files of the scope are hashed, and only if their size is shared
+	 * within the scope (anywhere with wholeIndex, which hashes the whole index).
+	 * Files moved or renamed first get the hashes of their deleted records.
+	 * @return  Count of files hashed entirely
+	 * @throws Exception
+	 */
+	private long hashPending() throws Exception {
+		reuseHashes(sqlCacheIdentity);
+		linkHashes();
+		Map<Long, File> devs = queryDevices();
+		hashRecords(sqlPartialQuery, new Object[] { hashAlg, partialMinSize }, devs, true);
+		reuseHashes(sqlCachePartial);
+		long count = hashRecords(sqlPendingQuery, new Object[] { hashAlg, partialMinSize, partialMinSize }, devs, false);
+		linkHashes();
+		purgeTableRows("HashCache");
+		dbConn.commit();
+		return count;
+	}
+
+	/**
+	 * Give Files the hashes kept in HashCache of the deleted Files they were
+	 * moved from, so moving or renaming files doesn't read them again.
+	 * A deleted File matches by inode, size and modify time, or, once moved
+	 * to another file system, by size, modify time and partial hash.
+	 * @param sql  sqlCacheIdentity or sqlCachePartial
+	 * @throws Exception
+	 */
+	private void reuseHashes(String sql) throws Exception {
+		PreparedStatement stmntReuse = dbConn.prepareStatement(sqlFileReuse);
+		Statement stmnt = dbConn.createStatement();
+		ResultSet rslt = stmnt.executeQuery(sql);
+		// Several deleted hard links of a File match it
+		HashSet<Integer> reused = new HashSet<Integer>();
+		while (rslt.next()) {
+			if (!reused.add(rslt.getInt("id")))
+				continue;
+			stmntReuse.setBytes (1, rslt.getBytes("hash"));
+			stmntReuse.setBytes (2, rslt.getBytes("partial_hash"));
+			stmntReuse.setString(3, rslt.getString("hash_alg"));
+			long hashTime = rslt.getLong("hash_time");
+			if (rslt.wasNull())
+				stmntReuse.setNull(4, Types.BIGINT);
+			else
+				stmntReuse.setLong(4, hashTime);
+			stmntReuse.setInt   (5, rslt.getInt("id"));
+			batch.add(stmntReuse);
+		}
+		rslt.close();
+		stmnt.close();
+		batch.flush();
+		stmntReuse.close();
+		if (verbosity > 0)
+			System.err.println(Integer.toString(reused.size()) + " moved files given the hash of their deleted record");
+	}
+
+	/**
+	 * Copy the hash of each inode to its hard links still pending.
+	 * @throws Exception
+	 */
+	private void linkHashes() throws Exception {
+		PreparedStatement stmnt = dbConn.prepareStatement(String.format(sqlLinkHash, inMatchScope("f")));
+		stmnt.setString(1, hashAlg);
+		stmnt.setLong  (2, System.currentTimeMillis());
+		stmnt.setString(3, hashAlg);
+		stmnt.setString(4, hashAlg);
+		stmnt.setString(5, hashAlg);
+		int count = stmnt.executeUpdate();
+		dbConn.commit();
+		stmnt.close();
+		if (verbosity > 0)
+			System.err.println(Integer.toString(count) + " hard links given the hash of their inode");
+	}
+
+	/**
+	 * @return  Devices of the Files that may be hashed, unknownDev for Files
+	 *          without one, each with a directory holding Files of the device
+	 * @throws Exception
+	 */
+	private Map<Long, File> queryDevices() throws Exception {
+		LinkedHashMap<Long, File> devs = new LinkedHashMap<Long, File>();
+		Statement stmnt = dbConn.createStatement();
+		ResultSet rslt = stmnt.executeQuery(String.format(sqlDevices, inMatchScope("f")));
+		while (rslt.next()) {
+			long dev = rslt.getLong("dev");
+			if (rslt.wasNull())
+				dev = HashPipeline.unknownDev;
+			devs.put(dev, new File(dictionary.getPath(rslt.getInt("dir_id"))));
+		}
+		rslt.close();
+		stmnt.close();
+		return devs;
+	}
+
+	/**
+	 * Hash the files selected by a query and record the hashes.
+	 * The query is run for each device, so each device is read by the
+	 * workers of its own lane (see HashPipeline and makeDevices).
+	 * With inodeOrder, the Files of a spinning disk are read in inode order,
+	 * which mostly follows their layout on disk, so the disk sweeps rather
+	 * than seeks back and forth.
+	 * Files are hashed on the worker threads; records are written on this thread.
+	 * @param sql      Query returning id, dir_id and file_name; formatted with the
+	 *                 scopes of f and g and a condition on the device of f
+	 * @param params   Parameters of the query
+	 * @param devs     Devices of the Files to hash, see queryDevices
+	 * @param partial  Compute the partial hash rather than the full hash
+	 * @return  Count of files hashed
+	 * @throws Exception
+	 */
+	private long hashRecords(String sql, Object[] params, Map<Long, File> devs, final boolean partial)
+			throws Exception {
+		final String kind = partial ? "partial" : "full";
+		final long[] count = new long[1];
+		HashPipeline pipeline = new HashPipeline(makeDevices(), threads * queueSizePerThread, hashAlg,
+			new HashPipeline.Hashing() {
+				@Override
+				public byte[] hash(FileHasher hasher, File file) throws Exception {
+					if (partial)
+						return hasher.partialHash(file, partialBlockSize, partialMiddleBlocks);
+					return hasher.hash(file);
+				}
+			},
+			new HashPipeline.Writer() {
+				@Override
+				public void write(HashPipeline.Job job) throws Exception {
+					if (job.getHash() == null) {
+						System.err.println("ERROR: " + job.getError().getMessage());
+						errorCount++;
+						return;
+					}
+					if (partial) {
+						stmntFilePartial.setBytes (1, job.getHash());
+						stmntFilePartial.setString(2, hashAlg);
+						stmntFilePartial.setString(3, hashAlg);
+						stmntFilePartial.setInt   (4, job.getId());
+						batch.add(stmntFilePartial);
+					} else {
+						stmntFileHash.setBytes (1, job.getHash());
+						stmntFileHash.setLong  (2, System.currentTimeMillis());
+						stmntFileHash.setString(3, hashAlg);
+						stmntFileHash.setInt   (4, job.getId());
+						batch.add(stmntFileHash);
+					}
+					if (verbosity > 0 && count[0] % 1000 == 0)
+						System.err.printf("%d files %s hashed.\n", count[0], kind);
+					count[0]++;
+				}
+			});
+		ArrayList<PreparedStatement> queries = new ArrayList<PreparedStatement>();
+		try {
+			LinkedHashMap<Long, HashPipeline.Source> sources = new LinkedHashMap<Long, HashPipeline.Source>();
+			for (Map.Entry<Long, File> entry : devs.entrySet()) {
+				long dev = entry.getKey();
+				String devCondition = dev == HashPipeline.unknownDev ? "f.dev IS NULL" : "f.dev = " + dev;
+				String devSql = String.format(sql, inMatchScope("f"), inMatchScope("g"), devCondition);
+				if (inodeOrder && dev != HashPipeline.unknownDev
+						&& StorageDevice.classify(entry.getValue().toPath(), dev) == StorageDevice.Kind.ROTATIONAL)
+					devSql += " ORDER BY f.ino";
+				PreparedStatement query = dbConn.prepareStatement(devSql);
+				queries.add(query);
+				for (int i = 0; i < params.length; i++)
+					query.setObject(i + 1, params[i]);
+				final ResultSet rslt = query.executeQuery();
+				sources.put(dev, new HashPipeline.Source() {
+					@Override
+					public HashPipeline.Job next() throws Exception {
+						if (!rslt.next())
+							return null;
+						File file = new File(dictionary.getPath(rslt.getInt("dir_id")), rslt.getString("file_name"));
+						return new HashPipeline.Job(rslt.getInt("id"), file);
+					}
+				});
+			}
+			pipeline.submit(sources);
+			// Also closes the result sets
+			for (PreparedStatement query : queries)
+				query.close();
+			pipeline.finish();
+			batch.flush();
+		} catch (Throwable t) {
+			pipeline.abort();
+			throw t;
+		}
+		if (verbosity > 0)
+			System.err.printf("%d files %s hashed\n", count[0], kind);
+		return count[0];
+	}
+	
+	/**
+	 * Query distinct hashes and report a line containing each file having that hash and size
+	 * @param out
+	 * @return Count of lines reported
+	 * @throws Exception
+	 */
+	private int report(PrintStream out) throws Exception {
+		int hashCnt = 0;
+		ContentComparer comparer = verify ? new ContentComparer(verifyMemory) : null;
+		Statement stmnt = dbConn.createStatement();
+		ResultSet rslt = stmnt.executeQuery(sqlDupReport);
+		byte[] prevHash = null;
+		long prevSize = -1;
+		ArrayList<File> group = new ArrayList<File>();
+		while (rslt.next()) {
+			byte[] hash = rslt.getBytes("hash");
+			long size = rslt.getLong("size");
+			if (!Arrays.equals(hash, prevHash) || size != prevSize) {
+				hashCnt += reportGroup(out, prevHash, group, comparer);
+				group.clear();
+				prevHash = hash;
+				prevSize = size;
+			}
+			group.add(new File(dictionary.getPath(rslt.getInt("dir_id")), rslt.getString("file_name")));
+		}
+		hashCnt += reportGroup(out, prevHash, group, comparer);
+		rslt.close();
+		stmnt.close();
+		reportLinks(out);
+		dbConn.commit();
+		return hashCnt;
+	}
+
+	/**
+	 * Record the duplicates of the whole index, then report them.
+	 * The Duplicate table only covers the scope of the last update.
+	 * @param out
+	 * @return Count of lines reported
+	 * @throws Exception
+	 */
+	private int reportIndex(PrintStream out) throws Exception {
+		ArrayList<Integer> runScope = scope;
+		scope = new ArrayList<Integer>();
+		try {
+			queryDups();
+			return report(out);
+		} finally {
+			scope = runScope;
+		}
+	}
+
+	/**
+	 * Scan the directories and report duplicates without the database.
+	 * The output is the same as report().
+	 * @param out
+	 * @throws Exception
+	 */
+	private void runInMemory(final PrintStream out) throws Exception {
+		final MemoryEngine engine = new MemoryEngine(threads, threads * queueSizePerThread, hashAlg);
+		engine.setPartial(partialBlockSize, partialMiddleBlocks, partialMinSize);
+		engine.setMinSize(reportEmpties ? 0 : 1);
+		engine.setVerbosity(verbosity);
+		engine.setDevices(makeDevices());
+		engine.setInodeOrder(inodeOrder);
+		for (File dir : dirs) {
+			ParallelDirectoryWalker dw = makeWalker(dir);
+			dw.walk(new ParallelDirectoryWalker.Notification() {
+				@Override
+				public boolean onFile(File file) {
+					return onFile(file, null);
+				}
+				@Override
+				public boolean onFile(File file, BasicFileAttributes attrs) {
+					try {
+						if (attrs == null)
+							attrs = FileIdentity.readAttributes(file.toPath());
+						engine.add(file, attrs);
+					} catch (Throwable t) {
+						synchronized (Main.this) {
+							System.err.println("ERROR: " + file.getAbsolutePath() + " " + t.getMessage());
+							errorCount++;
+						}
+					}
+					return true;
+				}
+				@Override
+				public boolean onDir(File file) {
+					return true;
+				}
+			});
+			errorCount += dw.getErrorCount();
+		}
+		if (verbosity > 0)
+			System.err.println(Integer.toString(engine.getCount()) + " files found");
+		final ContentComparer comparer = verify ? new ContentComparer(verifyMemory) : null;
+		engine.findDuplicates(new MemoryEngine.Reporter() {
+			@Override
+			public void duplicates(byte[] hash, List<File> files) {
+				reportGroup(out, hash, files, comparer);
+			}
+			@Override
+			public void hardLinks(List<File> files) {
+				printGroup(out, "HARDLINKS:", files);
+			}
+		});
+		errorCount += engine.getErrorCount();
+	}
+
+	/**
+	 * Report the files having the same hash.
+	 * When verifying, only the files with identical contents are reported together.
+	 * @param out
+	 * @param hash      Digest of the files
+	 * @param group     Files having the same hash
+	 * @param comparer  Null if not verifying
+	 * @return Count of lines reported
+	 */
+	private int reportGroup(PrintStream out, byte[] hash, List<File> group, ContentComparer comparer) {
+		if (group.isEmpty())
+			return 0;
+		if (comparer == null) {
+			printGroup(out, "DUPLICATES:", group);
+			return 1;
+		}
+		List<List<File>> identical = comparer.compare(group);
+		for (Map.Entry<File, IOException> failure : comparer.getFailures().entrySet()) {
+			System.err.println("ERROR: file not verified: " + failure.getKey().getAbsolutePath()
+				+ " " + failure.getValue().getMessage());
+			errorCount++;
+		}
+		int verified = comparer.getFailures().size();
+		for (List<File> same : identical) {
+			printGroup(out, "DUPLICATES:", same);
+			verified += same.size();
+		}
+		if (identical.size() > 1 || verified < group.size())
+			printGroup(System.err, "MISMATCH: same hash " + Util.toHex(hash) + ", different contents:", group);
+		return identical.size();
+	}
+
+	/**
+	 * Print a line with a label followed by file paths.
+	 * @param out
+	 * @param label
+	 * @param files
+	 */
+	private static void printGroup(PrintStream out, String label, List<File> files) {
+		out.print(label);
+		for (File file : files) {
+			out.print(" ");
+			out.print(file.getPath());
+		}
+		out.println();
+	}
+
+	/**
+	 * Report a line containing the paths of each inode having several hard links
+	 * within the scope (with wholeIndex, all the paths of the inodes having one)
+	 * @param out
+	 * @throws Exception
+	 */
+	private void reportLinks(PrintStream out) throws Exception {
+		String linked = inScope("f");
+		if (wholeIndex && !scope.isEmpty())
+			linked = "EXISTS (SELECT h.id FROM File h WHERE h.dev = f.dev AND h.ino = f.ino AND " + inScope("h") + ")";
+		PreparedStatement stmnt = dbConn.prepareStatement(String.format(sqlLinkReport, linked, inMatchScope("g")));
+		stmnt.setLong(1, reportEmpties ? 0 : 1);
+		ResultSet rslt = stmnt.executeQuery();
+		long prevDev = 0;
+		long prevIno = 0;
+		boolean first = true;
+		while (rslt.next()) {
+			long dev = rslt.getLong("dev");
+			long ino = rslt.getLong("ino");
+			if (first || dev != prevDev || ino != prevIno) {
+				if (!first)
+					out.println();
+				out.print("HARDLINKS:");
+				prevDev = dev;
+				prevIno = ino;
+				first = false;
+			}
+			out.print(" ");
+			out.print(new File(dictionary.getPath(rslt.getInt("dir_id")), rslt.getString("file_name")).getPath());
+		}
+		if (!first)
+			out.println();
+		rslt.close();
+		stmnt.close();
+	}
+
+	/**
+	 * Accessor method for exit code property.
+	 * @return
+	 */
+	public int getExitCode() {
+		return exitCode;
+	}
+	
+	/**
+	 * Populate or update the File table.
+	 * Then hash the files whose size is shared by another file.
+	 * @throws Exception
+	 */
+	private void evaluateDirs() throws Exception {
+		boolean resumed = checkpointId >= 0;
+		if (!resumed) {
+			// Committed together: a scan interrupted later resumes after the purge
+			if (fresh)
+				purgeRows();
+			startCheckpoint();
+		}
+		recordRoots();
+		for (File dir : dirs) {
+			int dirId = dictionary.getId(dir.getAbsolutePath(), true);
+			if (doneRoots.contains(dirId)) {
+				if (verbosity > 0)
+					System.err.println("Already scanned: " + dir.getAbsolutePath());
+				continue;
+			}
+			// Reuse File records from previous execution(s), or from the scan resumed
+			scanDir(dir, !resumed && (newDb || fresh));
+			PreparedStatement stmnt = dbConn.prepareStatement(sqlCheckpointRootDone);
+			stmnt.setLong(1, System.currentTimeMillis());
+			stmnt.setInt (2, checkpointId);
+			stmnt.setInt (3, dirId);
+			stmnt.executeUpdate();
+			dbConn.commit();
+			stmnt.close();
+		}
+		recordFilters();
+		// Only now are all sizes known
+		hashPending();
+	}
+
+	/**
+	 * Bring the records of dirs up to date and record the duplicates.
+	 * @throws Exception
+	 */
+	private void update() throws Exception {
+		evaluateDirs();
+		queryDups();
+		PreparedStatement stmnt = dbConn.prepareStatement(sqlCheckpointDone);
+		stmnt.setLong(1, System.currentTimeMillis());
+		stmnt.setInt (2, checkpointId);
+		stmnt.executeUpdate();
+		dbConn.commit();
+		stmnt.close();
+		// Later scans (server) start anew, from the records of this one
+		checkpointId = -1;
+		resumeTime = Long.MAX_VALUE;
+		doneRoots.clear();
+		fresh = false;
+		newDb = false;
+	}
+
+	/**
+	 * Serve requests until a stop request, see QueryServer.
+	 * With watch, changes are applied meanwhile on another thread.
+	 * @throws Exception
+	 */
+	private void serve() throws Exception {
+		// Scan requests replace dirs and the scope: the watcher keeps its own
+		final ArrayList<File> watchDirs = new ArrayList<File>(dirs);
+		final ArrayList<Integer> watchScope = new ArrayList<Integer>(scope);
+		QueryServer queryServer = new QueryServer(port, getTokenFile(), new QueryServer.Service() {
+			@Override
+			public void report(PrintStream out) throws Exception {
+				synchronized (dbLock) {
+					reportIndex(out);
+				}
+			}
+			@Override
+			public boolean lookup(PrintStream out, List<File> files) throws Exception {
+				synchronized (dbLock) {
+					return Main.this.lookup(out, files);
+				}
+			}
+			@Override
+			public void scan(PrintStream out, List<File> dirs) throws Exception {
+				synchronized (dbLock) {
+					Main.this.dirs = new ArrayList<File>(dirs);
+					update();
+					Main.this.report(out);
+				}
+			}
+		});
+		queryServer.start();
+		if (verbosity > 0)
+			System.err.printf("Serving requests on port %d ...\n", port);
+		if (watch) {
+			Thread watcher = new Thread() {
+				@Override
+				public void run() {
+					try {
+						watch(watchDirs, watchScope);
+					} catch (Throwable t) {
+						synchronized (dbLock) {
+							System.err.println("ERROR: watch stopped: " + t);
+							errorCount++;
+						}
+					}
+				}
+			};
+			watcher.setDaemon(true);
+			watcher.start();
+		}
+		queryServer.waitForStop();
+		synchronized (dbLock) {
+			stopping = true;
+		}
+	}
+
+	/**
+	 * @return  File holding the token of the server, see QueryServer
+	 * @throws Exception
+	 */
+	private File getTokenFile() throws Exception {
+		return new File(getConfigDir(), "server.token");
+	}
+
+	/**
+	 * Send the command to a server and print its response.
+	 * @param out
+	 * @throws Exception
+	 */
+	private void runClient(PrintStream out) throws Exception {
+		File tokenFile = getTokenFile();
+		if (!tokenFile.isFile()) {
+			System.err.println("ERROR: no server token: " + tokenFile.getPath());
+			errorCount++;
+			return;
+		}
+		int status;
+		try {
+			if (stop)
+				status = QueryServer.send(port, tokenFile, "POST", "/stop", null, new ArrayList<File>(), out);
+			else if (!lookups.isEmpty())
+				status = QueryServer.send(port, tokenFile, "GET", "/lookup", "path", lookups, out);
+			else if (reportOnly || dirs.isEmpty())
+				status = QueryServer.send(port, tokenFile, "GET", "/report", null, new ArrayList<File>(), out);
+			else
+				status = QueryServer.send(port, tokenFile, "POST", "/scan", "dir", dirs, out);
+		} catch (IOException e) {
+			System.err.println("ERROR: no server on port " + port + ": " + e.getMessage());
+			errorCount++;
+			return;
+		}
+		if (status != 200)
+			exitCode = 1;
+	}
+
+	/**
+	 * Report the duplicates of files, anywhere in the index.
+	 * Each file is reported on the line of its duplicates, on a UNIQUE line
+	 * if it has none, or on a NOT FOUND line if it has no record.
+	 * The Files of its size and hash are read from the FileHash index, the
+	 * first of each inode kept, as queryDups() does.
+	 * @param out
+	 * @param files  Absolute files
+	 * @return  False if a file has no record
+	 * @throws Exception
+	 */
+	private boolean lookup(PrintStream out, List<File> files) throws Exception {
+		boolean found = true;
+		ContentComparer comparer = verify ? new ContentComparer(verifyMemory) : null;
+		PreparedStatement stmntFileQuery = dbConn.prepareStatement(sqlFileQuery);
+		PreparedStatement stmntDupGroup = dbConn.prepareStatement(sqlDupGroup);
+		for (File file : files) {
+			int dirId = file.getParent() == null ? -1 : dictionary.getId(file.getParent(), false);
+			boolean recorded = false;
+			byte[] hash = null;
+			long size = 0;
+			if (dirId >= 0) {
+				stmntFileQuery.setInt   (1, dirId);
+				stmntFileQuery.setString(2, file.getName());
+				ResultSet rslt = stmntFileQuery.executeQuery();
+				recorded = rslt.next();
+				if (recorded) {
+					hash = rslt.getBytes("hash");
+					size = rslt.getLong("size");
+				}
+				rslt.close();
+			}
+			if (!recorded) {
+				out.println("NOT FOUND: " + file.getPath());
+				found = false;
+				continue;
+			}
+			ArrayList<File> group = new ArrayList<File>();
+			// Don't report empty files unless requested
+			if (hash != null && size >= (reportEmpties ? 0 : 1)) {
+				stmntDupGroup.setBytes(1, hash);
+				stmntDupGroup.setLong (2, size);
+				ResultSet rslt = stmntDupGroup.executeQuery();
+				HashSet<String> inodes = new HashSet<String>();
+				while (rslt.next()) {
+					long ino = rslt.getLong("ino");
+					// Without identity, every File is an inode of its own
+					String inode = rslt.wasNull() ? "id " + rslt.getInt("id") : rslt.getLong("dev") + ":" + ino;
+					if (inodes.add(inode))
+						group.add(new File(dictionary.getPath(rslt.getInt("dir_id")), rslt.getString("file_name")));
+				}
+				rslt.close();
+			}
+			if (group.size() < 2)
+				out.println("UNIQUE: " + file.getPath());
+			else
+				reportGroup(out, hash, group, comparer);
+		}
+		stmntDupGroup.close();
+		stmntFileQuery.close();
+		dbConn.commit();
+		return found;
+	}
+
+	/**
+	 * Keep the records of watched up to date until killed.
+	 * The changes reported by the file system are applied once quiet for
+	 * watchMillis, so a file being written is hashed again only once.
+	 * Files changed go back to pending, are hashed again if they may have
+	 * a duplicate, and the Duplicate table is rebuilt.
+	 * Directories created, and those whose events were lost (overflow),
+	 * are scanned again as a whole; the rest of the trees is never rescanned.
+	 * @param watched     Trees watched
+	 * @param watchScope  IDs of the Roots of watched, see recordRoots()
+	 * @throws Exception
+	 */
+	private void watch(List<File> watched, ArrayList<Integer> watchScope) throws Exception {
+		TreeWatcher watcher = new TreeWatcher();
+		PreparedStatement stmntFileQuery = dbConn.prepareStatement(sqlFileQuery);
+		try {
+			for (File dir : watched) {
+				Path top = dir.getAbsoluteFile().toPath();
+				watcher.register(top, filter.isEmpty() ? null : filter.within(top));
+			}
+			errorCount += watcher.getErrorCount();
+			if (verbosity > 0)
+				System.err.printf("Watching %d directories ...\n", watcher.getCount());
+			while (true) {
+				TreeWatcher.Changes changes = watcher.take(watchMillis);
+				synchronized (dbLock) {
+					if (stopping)
+						return;
+					for (Path dir : changes.getOverflows()) {
+						if (verbosity > 0)
+							System.err.println("OVERFLOW: " + dir);
+						if (Files.isDirectory(dir))
+							scanDir(dir.toFile(), false);
+						else
+							applyChange(dir, stmntFileQuery);
+					}
+					for (Path path : changes.getPaths()) {
+						if (!changes.getOverflows().contains(path.getParent()))
+							applyChange(path, stmntFileQuery);
+					}
+					batch.flush();
+					ArrayList<Integer> runScope = scope;
+					scope = watchScope;
+					try {
+						hashPending();
+						queryDups();
+					} finally {
+						scope = runScope;
+					}
+				}
+			}
+		} finally {
+			stmntFileQuery.close();
+			watcher.close();
+		}
+	}
+
+	/**
+	 * Bring the records of a directory entry reported changed up to date.
+	 * @param path            Entry created, modified or deleted
+	 * @param stmntFileQuery  See sqlFileQuery
+	 * @throws Exception
+	 */
+	private void applyChange(Path path, PreparedStatement stmntFileQuery) throws Exception {
+		BasicFileAttributes attrs = null;
+		try {
+			attrs = FileIdentity.readAttributes(path);
+		} catch (NoSuchFileException e) {
+			// Deleted, or dangling link
+		}
+		// Excluded: any record left by other filter options goes
+		if (attrs != null && !(filter.acceptPath(path) && filter.accept(path, attrs)))
+			attrs = null;
+		File file = path.toFile();
+		int dirId = dictionary.getId(path.getParent().toString(), false);
+		int fileId = -1;
+		long modifyTime = 0;
+		if (dirId >= 0) {
+			stmntFileQuery.setInt   (1, dirId);
+			stmntFileQuery.setString(2, file.getName());
+			ResultSet rslt = stmntFileQuery.executeQuery();
+			if (rslt.next()) {
+				fileId = rslt.getInt("id");
+				modifyTime = rslt.getLong("modify_time");
+			}
+			rslt.close();
+		}
+		int subdirId = dictionary.getId(path.toString(), false);
+		if (attrs != null && attrs.isRegularFile()) {
+			if (fileId < 0) {
+				if (verbosity > 0)
+					System.err.println("NEW: " + file.getPath());
+				insertFile(dictionary.getId(path.getParent().toString(), true),
+					getRootId(path.getParent().toString()), file, attrs);
+			} else if (modifyTime != attrs.lastModifiedTime().toMillis()) {
+				if (verbosity > 0)
+					System.err.println("CHANGED: " + file.getPath());
+				updateFile(fileId, file, attrs);
+			}
+			fileId = -1;
+		} else if (attrs != null && attrs.isDirectory() && !attrs.isSymbolicLink()) {
+			// Already scanned directories are watched: their entries are reported on their own
+			if (subdirId < 0 || !hasScanned(subdirId))
+				scanDir(file, false);
+			subdirId = -1;
+		}
+		// Deleted, or replaced by another type of entry
+		if (fileId >= 0) {
+			if (verbosity > 0)
+				System.err.println("DELETED: " + file.getPath());
+			deleteFile(fileId);
+		}
+		if (subdirId >= 0)
+			deleteTree(subdirId, file.getPath());
+	}
+
+	/**
+	 * @param dirId  Directory ID
+	 * @return  True if the directory has been scanned
+	 * @throws Exception
+	 */
+	private boolean hasScanned(int dirId) throws Exception {
+		stmntDirQuery.setInt(1, dirId);
+		ResultSet rslt = stmntDirQuery.executeQuery();
+		boolean scanned = rslt.next();
+		if (scanned) {
+			rslt.getLong("modify_time");
+			scanned = !rslt.wasNull();
+		}
+		rslt.close();
+		return scanned;
+	}
+
+	/**
+	 * Journal the start of a scan of dirs.
+	 * Previous scans are forgotten: only the last one can be resumed.
+	 * @throws Exception
+	 */
+	private void startCheckpoint() throws Exception {
+		Statement stmnt = dbConn.createStatement();
+		stmnt.execute("DELETE FROM CheckpointRoot");
+		stmnt.execute("DELETE FROM Checkpoint");
+		stmnt.close();
+		PreparedStatement insert = dbConn.prepareStatement(sqlCheckpointInsert, Statement.RETURN_GENERATED_KEYS);
+		insert.setLong  (1, System.currentTimeMillis());
+		insert.setShort (2, (short) (fresh ? 1 : 0));
+		insert.setString(3, hashAlg);
+		insert.setString(4, filter.toString());
+		insert.executeUpdate();
+		ResultSet rslt = insert.getGeneratedKeys();
+		rslt.next();
+		checkpointId = rslt.getInt(1);
+		rslt.close();
+		insert.close();
+		insert = dbConn.prepareStatement(sqlCheckpointRootInsert);
+		for (File dir : dirs) {
+			insert.setInt(1, checkpointId);
+			insert.setInt(2, dictionary.getId(dir.getAbsolutePath(), true));
+			insert.executeUpdate();
+		}
+		insert.close();
+		dbConn.commit();
+	}
+
+	/**
+	 * Load the last interrupted scan to resume it: its directories, hash
+	 * algorithm and refresh option replace those of the command line.
+	 * Without an interrupted scan, the command line options apply.
+	 * @return False if the command line conflicts with the interrupted scan
+	 * @throws Exception
+	 */
+	private boolean loadCheckpoint() throws Exception {
+		Statement stmnt = dbConn.createStatement();
+		ResultSet rslt = stmnt.executeQuery(sqlCheckpointQuery);
+		if (!rslt.next()) {
+			rslt.close();
+			stmnt.close();
+			dbConn.commit();
+			System.err.println("No interrupted scan to resume; starting a new one");
+			return true;
+		}
+		int id = rslt.getInt("id");
+		long startTime = rslt.getLong("start_time");
+		boolean refresh = rslt.getShort("refresh") != 0;
+		String alg = rslt.getString("hash_alg");
+		String filters = rslt.getString("filters");
+		rslt.close();
+		stmnt.close();
+		dbConn.commit();
+		if (hashAlgGiven && !alg.equals(hashAlg)) {
+			System.err.println("--resume continues the interrupted scan with --hash " + alg);
+			return false;
+		}
+		if (!filters.equals(filter.toString())) {
+			System.err.println("--resume continues the interrupted scan with the same filter options: "
+				+ (filters.isEmpty() ? "none" : filters));
+			return false;
+		}
+		ArrayList<File> roots = new ArrayList<File>();
+		HashSet<String> paths = new HashSet<String>();
+		PreparedStatement query = dbConn.prepareStatement(sqlCheckpointRoots);
+		query.setInt(1, id);
+		rslt = query.executeQuery();
+		while (rslt.next()) {
+			int dirId = rslt.getInt("dir_id");
+			File root = new File(dictionary.getPath(dirId));
+			paths.add(root.getPath());
+			if (root.isDirectory()) {
+				roots.add(root);
+			} else {
+				exitCode = 1;
+				System.err.println("directory does not exist: " + root.getPath());
+			}
+			rslt.getLong("done_time");
+			if (!rslt.wasNull())
+				doneRoots.add(dirId);
+		}
+		rslt.close();
+		query.close();
+		dbConn.commit();
+		for (File dir : dirs) {
+			if (!paths.contains(dir.getAbsolutePath())) {
+				System.err.println("--resume continues the interrupted scan of: " + paths);
+				return false;
+			}
+		}
+		if (verbosity > 0)
+			System.err.printf("Resuming scan started %tc\n", startTime);
+		checkpointId = id;
+		resumeTime = startTime;
+		hashAlg = alg;
+		fresh = refresh;
+		dirs = roots;
+		return true;
+	}
+	
+	/**
+	 * Parse the command line parameters.
+	 * @param args
+	 * @return False if execution should be aborted
+	 */
+	private boolean parseArgs(String[] args) {
+		boolean ret = true;
+		if (args.length == 0) {
+			System.err.println("Usage: <executable> [args] <directories>  # Try --help option.");
+			return false;
+		}
+		for (int curArg = 0; curArg < args.length; curArg++) {
+			if (args[curArg].equals("--help")) {
+				System.err.printf(info);
+				ret = false;
+			} else if (args[curArg].equals("--verbose")) {
+					verbosity = 1;
+			} else if (args[curArg].equals("--refresh")) {
+				fresh = true;
+			} else if (args[curArg].equals("--resume")) {
+				resume = true;
+			} else if (args[curArg].equals("--report-only")) {
+				reportOnly = true;
+			} else if (args[curArg].equals("--whole-index")) {
+				wholeIndex = true;
+			} else if (args[curArg].equals("--inode-order")) {
+				inodeOrder = true;
+			} else if (args[curArg].equals("--verify")) {
+				verify = true;
+			} else if (args[curArg].equals("--no-db")) {
+				noDb = true;
+			} else if (args[curArg].equals("--hash")) {
+				if (++curArg < args.length && Hashers.isAvailable(args[curArg])) {
+					hashAlg = args[curArg];
+					hashAlgGiven = true;
+				} else {
+					exitCode = 1;
+					System.err.println("hash algorithm expected after --hash: " + String.join(", ", Hashers.getNames()));
+					ret = false;
+				}
+			} else if (args[curArg].equals("--batch-size")) {
+				batchSize = parseCount(args, ++curArg);
+				if (batchSize < 1)
+					ret = false;
+			} else if (args[curArg].equals("--server")) {
+				server = true;
+			} else if (args[curArg].equals("--client")) {
+				client = true;
+			} else if (args[curArg].equals("--stop")) {
+				stop = true;
+			} else if (args[curArg].equals("--port")) {
+				port = parseCount(args, ++curArg);
+				if (port > 65535) {
+					exitCode = 1;
+					System.err.println("port expected after --port: 1 to 65535");
+					port = -1;
+				}
+				if (port < 1)
+					ret = false;
+			} else if (args[curArg].equals("--lookup")) {
+				if (++curArg < args.length) {
+					lookups.add(new File(args[curArg]).getAbsoluteFile());
+				} else {
+					exitCode = 1;
+					System.err.println("file name expected after --lookup");
+					ret = false;
+				}
+			} else if (args[curArg].equals("--exclude")) {
+				if (++curArg < args.length) {
+					filter.addExclude(args[curArg]);
+				} else {
+					exitCode = 1;
+					System.err.println("pattern expected after --exclude");
+					ret = false;
+				}
+			} else if (args[curArg].equals("--exclude-regex")) {
+				try {
+					filter.addExcludeRegex(args[++curArg]);
+				} catch (Throwable t) {
+					exitCode = 1;
+					System.err.println("regular expression expected after --exclude-regex");
+					ret = false;
+				}
+			} else if (args[curArg].equals("--min-size")) {
+				long size = parseSize(args, ++curArg);
+				if (size < 0)
+					ret = false;
+				else
+					filter.setMinSize(size);
+			} else if (args[curArg].equals("--max-size")) {
+				long size = parseSize(args, ++curArg);
+				if (size < 0)
+					ret = false;
+				else
+					filter.setMaxSize(size);
+			} else if (args[curArg].equals("--type")) {
+				if (++curArg < args.length) {
+					for (String type : args[curArg].split(","))
+						filter.addType(type.startsWith(".") ? type.substring(1) : type);
+				} else {
+					exitCode = 1;
+					System.err.println("name extension expected after --type");
+					ret = false;
+				}
+			} else if (args[curArg].equals("--one-file-system")) {
+				filter.setOneFileSystem(true);
+			} else if (args[curArg].equals("--watch")) {
+				watch = true;
+			} else if (args[curArg].equals("--watch-ms")) {
+				watchMillis = parseCount(args, ++curArg);
+				if (watchMillis < 1)
+					ret = false;
+			} else if (args[curArg].equals("--commit-ms")) {
+				commitMillis = parseCount(args, ++curArg);
+				if (commitMillis < 1)
+					ret = false;
+			} else if (args[curArg].equals("--sort-memory")) {
+				int megabytes = parseCount(args, ++curArg);
+				sortMemory = megabytes * 1024L * 1024;
+				if (megabytes < 1)
+					ret = false;
+			} else if (args[curArg].equals("--threads")) {
+				threads = parseCount(args, ++curArg);
+				if (threads < 1)
+					ret = false;
+			} else if (args[curArg].equals("--hdd-threads")) {
+				hddThreads = parseCount(args, ++curArg);
+				if (hddThreads < 1)
+					ret = false;
+			} else if (args[curArg].equals("--net-threads")) {
+				netThreads = parseCount(args, ++curArg);
+				if (netThreads < 1)
+					ret = false;
+			} else {
+				File dir = new File(args[curArg]);
+				if (dir.isDirectory())
+					dirs.add(dir);
+				else {
+					exitCode = 1;
+					System.err.println("directory does not exist: " + dir.getAbsolutePath());
+				}
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Parse the value of a numeric command line option.
+	 * @param args
+	 * @param curArg  Index of the value
+	 * @return Parsed value, -1 if missing, invalid or not positive
+	 */
+	private int parseCount(String[] args, int curArg) {
+		int count = -1;
+		try {
+			count = Integer.parseInt(args[curArg]);
+		} catch (Throwable t) {
+			// Reported below
+		}
+		if (count < 1) {
+			exitCode = 1;
+			System.err.println("positive number expected after " + args[curArg - 1]);
+			count = -1;
+		}
+		return count;
+	}
+	
+	/**
+	 * Parse the value of a size command line option.
+	 * @param args
+	 * @param curArg  Index of the value: bytes, or K, M or G binary multiples
+	 * @return Parsed value, -1 if missing or invalid
+	 */
+	private long parseSize(String[] args, int curArg) {
+		long size = -1;
+		try {
+			String value = args[curArg].toUpperCase();
+			int shift = value.endsWith("K") ? 10 : value.endsWith("M") ? 20 : value.endsWith("G") ? 30 : 0;
+			if (shift > 0)
+				value = value.substring(0, value.length() - 1);
+			size = Long.parseLong(value) << shift;
+		} catch (Throwable t) {
+			// Reported below
+		}
+		if (size < 0) {
+			exitCode = 1;
+			System.err.println("size expected after " + args[curArg - 1]);
+			size = -1;
+		}
+		return size;
+	}
+
+	/**
+	 * Close all open resources
+	 * @throws Exception
+	 */
+	public void terminate() throws Exception {
+		if (stmntFilePartial != null) {
+			stmntFilePartial.close();
+			stmntFilePartial = null;
+		}
+		if (stmntFileHash != null) {
+			stmntFileHash.close();
+			stmntFileHash = null;
+		}
+		if (stmntFileDelete != null) {
+			stmntFileDelete.close();
+			stmntFileDelete = null;
+		}
+		if (stmntFileIdentity != null) {
+			stmntFileIdentity.close();
+			stmntFileIdentity = null;
+		}
+		if (stmntFileUpdate != null) {
+			stmntFileUpdate.close();
+			stmntFileUpdate = null;
+		}
+		PreparedStatement[] stmnts = {
+			stmntDirFiles, stmntDirSubdirs, stmntDirFileCount, stmntDirSubdirCount, stmntDirQuery, stmntDirChildren,
+			stmntDirUpdate, stmntDirFilesDelete, stmntDirDelete, stmntFileCache, stmntDirFilesCache };
+		for (PreparedStatement stmnt : stmnts) {
+			if (stmnt != null)
+				stmnt.close();
+		}
+		stmntDirFiles = stmntDirSubdirs = stmntDirFileCount = stmntDirSubdirCount = stmntDirQuery = stmntDirChildren = null;
+		stmntDirUpdate = stmntDirFilesDelete = stmntDirDelete = null;
+		stmntFileCache = stmntDirFilesCache = null;
+		if (dictionary != null) {
+			dictionary.close();
+			dictionary = null;
+		}
+		if (stmntFileInsert != null) {
+			stmntFileInsert.close();
+			stmntFileInsert = null;
+		}
+		if (dbConn != null) {
+			dbConn.close();
+			dbConn = null;
+		}
+	}
+
+	/**
+	 * Guts of the execution.
+	 * Called after initialization.
+	 */
+	public void run() throws Exception {
+		if (client) {
+			runClient(System.out);
+		} else if (noDb) {
+			runInMemory(System.out);
+		} else {
+			// A lookup alone doesn't update the records
+			if (!reportOnly && (lookups.isEmpty() || !dirs.isEmpty()))
+				update();
+			if (lookups.isEmpty() && reportOnly)
+				reportIndex(System.out);
+			else if (lookups.isEmpty())
+				report(System.out);
+			else if (!lookup(System.out, lookups))
+				exitCode = 1;
+			if (server)
+				serve();
+			else if (watch)
+				watch(dirs, scope);
+		}
+		if (errorCount > 0) {
+			System.err.printf("%d ERRORS WERE ENCOUNTERED\n", errorCount);
+			exitCode = 1;
+		}
+	}	
+	
+	/**
+	 * Constructor for the application.
+	 * @param args Command line parameters
+	 * @throws Exception
+	 */
+	public Main(String[] args) throws Exception {
 		if (!parseArgs(args))
 			exitCode = 1; // Cmd ln problem - abort
 		if (verbosity > 0)
 			System.err.printf(getVersion());
-		if (exitCode == 0)
+		if (noDb && (reportOnly || fresh || resume)) {
+			System.err.println("--no-db can't be combined with --report-only, --refresh or --resume");
+			exitCode = 1;
+		}
+		if (reportOnly && resume) {
+			System.err.println("--report-only can't be combined with --resume");
+			exitCode = 1;
+		}
+		if (watch && (noDb || reportOnly)) {
+			System.err.println("--watch can't be combined with --no-db or --report-only");
+			exitCode = 1;
+		}
+		if (server && noDb) {
+			System.err.println("--server can't be combined with --no-db");
+			exitCode = 1;
+		}
+		if (client && (noDb || fresh || resume || watch || server)) {
+			System.err.println("--client only sends the directories to scan, --lookup, --report-only or --stop");
+			exitCode = 1;
+		}
+		if (filter.toString().length() > maxFiltersLength) {
+			System.err.println("filter options too long: " + filter);
+			exitCode = 1;
+		}
+		if (client && !filter.isEmpty()) {
+			System.err.println("--client can't be combined with filter options; give them to the server");
+			exitCode = 1;
+		}
+		if (stop && !client) {
+			System.err.println("--stop requires --client");
+			exitCode = 1;
+		}
+		if (exitCode == 0 && !noDb && !client)
 			makeDbConn();
+		if (exitCode == 0 && resume && !loadCheckpoint())
+			exitCode = 1;
 	}
 	
 	/**
@@ -603,6 +2972,7 @@ public class Main {
 			// Run the application if no initialization problems
 			if (exitCode == 0) {
 				app.run();
+				exitCode = app.exitCode;
 			}
 			// Free resources
 			app.terminate();
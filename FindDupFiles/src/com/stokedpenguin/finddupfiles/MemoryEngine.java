@@ -0,0 +1,547 @@
+/* File: MemoryEngine.java
+ * Author: Don Stokes <myFirstName AT myFullName DOT com>
+ * Purpose:
+ *  Find duplicate files without a database (--no-db), for one-shot scans.
+ * Operation:
+ *  File records are kept in parallel primitive arrays: size, device, inode,
+ *  directory and name. Directory paths are held once each; file names are
+ *  packed in a byte arena of off-heap chunks. Grouping is done by sorting
+ *  record indexes rather than by building maps of objects.
+ *  As with the database, only files sharing their size with a file of
+ *  another inode are hashed, large ones on a sample of blocks first.
+ *  Digests are packed in long arrays, one slot per candidate file.
+ * Copyright 2019 Don Stokes
+ */
+/*******************************************************************************
+     This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.stokedpenguin.finddupfiles;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.stokedpenguin.util.FileHasher;
+import com.stokedpenguin.util.Hashers;
+import com.stokedpenguin.util.IndexSort;
+import com.stokedpenguin.util.file.FileIdentity;
+import com.stokedpenguin.util.file.StorageDevice;
+
+public class MemoryEngine {
+	/** Bytes per chunk of the name arena */
+	private static final int chunkSize = 16 * 1024 * 1024;
+	/** Initial capacity of the record arrays */
+	private static final int initialCapacity = 1024;
+	/** Count of hashing worker threads */
+	private int threads;
+	/** Sizes the hashing lane of each device, null for a single lane */
+	private HashPipeline.Devices devices = null;
+	/** Hash the files of each spinning disk in inode order */
+	private boolean inodeOrder = false;
+	/** Capacity of the hashing queues */
+	private int queueSize;
+	/** Name of hash algorithm, see Hashers */
+	private String algorithm;
+	/** Bytes per digest */
+	private int digestLength;
+	/** Longs per digest slot */
+	private int digestWidth;
+	/** Bytes per block of the partial hash */
+	private int partialBlockSize;
+	/** Blocks of the partial hash between the first and last */
+	private int partialMiddleBlocks;
+	/** Files up to this size are hashed entirely */
+	private long partialMinSize;
+	/** Smallest file size reported */
+	private long minSize = 1;
+	/** Increase output when non-zero */
+	private int verbosity = 0;
+	/** Count of errors encountered */
+	private int errorCount = 0;
+
+	/** Count of records */
+	private int count = 0;
+	private long[] sizes = new long[initialCapacity];
+	/** Device numbers, HashPipeline.unknownDev if unknown */
+	private long[] devs = new long[initialCapacity];
+	/** Inode numbers, unique negative numbers if unknown */
+	private long[] inos = new long[initialCapacity];
+	/** Index of directory path in dirPaths */
+	private int[] dirs = new int[initialCapacity];
+	/** Location of name in arena: chunk index in the high half, offset in the low half */
+	private long[] names = new long[initialCapacity];
+	/** Directory paths, by index */
+	private ArrayList<String> dirPaths = new ArrayList<String>();
+	/** Index of directory paths */
+	private HashMap<String, Integer> dirIds = new HashMap<String, Integer>();
+	/** Name arena: each name is a 2 byte length followed by UTF-8 bytes */
+	private ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+	/**
+	 * Receives the groups found
+	 * Implemented by client
+	 * @author don
+	 */
+	public static interface Reporter {
+		/**
+		 * @param hash   Digest shared by the files
+		 * @param files  Files of distinct inodes with the same hash
+		 * @throws Exception
+		 */
+		void duplicates(byte[] hash, List<File> files) throws Exception;
+		/**
+		 * @param files  Hard links to the same inode
+		 * @throws Exception
+		 */
+		void hardLinks(List<File> files) throws Exception;
+	}
+
+	/**
+	 * Constructor
+	 * @param threads    Count of hashing worker threads
+	 * @param queueSize  Capacity of the hashing queues
+	 * @param algorithm  Hash algorithm name, see Hashers
+	 * @throws Exception
+	 */
+	public MemoryEngine(int threads, int queueSize, String algorithm) throws Exception {
+		this.threads = threads;
+		this.queueSize = queueSize;
+		this.algorithm = algorithm;
+		digestLength = Hashers.create(algorithm).digest().length;
+		digestWidth = (digestLength + 7) / 8;
+	}
+
+	/**
+	 * @param devices  Sizes the hashing lane of each device, see HashPipeline
+	 */
+	public void setDevices(HashPipeline.Devices devices) {
+		this.devices = devices;
+	}
+
+	/**
+	 * @param inodeOrder  Hash the files of each spinning disk in inode order, to cut seeks
+	 */
+	public void setInodeOrder(boolean inodeOrder) {
+		this.inodeOrder = inodeOrder;
+	}
+
+	/**
+	 * Mutator method for the partial hash properties
+	 * @param blockSize     Bytes per sampled block
+	 * @param middleBlocks  Count of blocks sampled between the first and last
+	 * @param minSize       Files up to this size are hashed entirely
+	 */
+	public void setPartial(int blockSize, int middleBlocks, long minSize) {
+		partialBlockSize = blockSize;
+		partialMiddleBlocks = middleBlocks;
+		partialMinSize = minSize;
+	}
+
+	/**
+	 * Mutator method for MinSize property
+	 * @param minSize  Smallest file size reported
+	 */
+	public void setMinSize(long minSize) {
+		this.minSize = minSize;
+	}
+
+	/**
+	 * Mutator method for Verbosity property
+	 * @param verbosity  Increase output when non-zero
+	 */
+	public void setVerbosity(int verbosity) {
+		this.verbosity = verbosity;
+	}
+
+	/**
+	 * Accessor method for ErrorCount property
+	 * @return
+	 */
+	public int getErrorCount() {
+		return errorCount;
+	}
+
+	/**
+	 * @return  Count of files recorded
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Record a file. Safe to call from several threads.
+	 * @param file
+	 * @param attrs  Attributes of file
+	 * @throws Exception
+	 */
+	public void add(File file, BasicFileAttributes attrs) throws Exception {
+		FileIdentity identity = FileIdentity.of(file.toPath(), attrs);
+		byte[] name = file.getName().getBytes(StandardCharsets.UTF_8);
+		synchronized (this) {
+			if (count == sizes.length) {
+				int capacity = count * 2;
+				sizes = Arrays.copyOf(sizes, capacity);
+				devs = Arrays.copyOf(devs, capacity);
+				inos = Arrays.copyOf(inos, capacity);
+				dirs = Arrays.copyOf(dirs, capacity);
+				names = Arrays.copyOf(names, capacity);
+			}
+			String dirPath = file.getParent();
+			Integer dir = dirIds.get(dirPath);
+			if (dir == null) {
+				dir = dirPaths.size();
+				dirPaths.add(dirPath);
+				dirIds.put(dirPath, dir);
+			}
+			sizes[count] = attrs.size();
+			devs[count] = identity == null ? HashPipeline.unknownDev : identity.getDev();
+			inos[count] = identity == null ? -1 - count : identity.getIno();
+			dirs[count] = dir;
+			names[count] = store(name);
+			count++;
+		}
+	}
+
+	/**
+	 * Append a name to the arena.
+	 * @param name  UTF-8 bytes
+	 * @return  Location of name
+	 */
+	private long store(byte[] name) {
+		ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+		if (chunk == null || chunk.remaining() < name.length + 2) {
+			chunk = ByteBuffer.allocateDirect(chunkSize);
+			chunks.add(chunk);
+		}
+		long location = (long) (chunks.size() - 1) << 32 | chunk.position();
+		chunk.putShort((short) name.length);
+		chunk.put(name);
+		return location;
+	}
+
+	/**
+	 * @param record
+	 * @return  File recorded
+	 */
+	private File getFile(int record) {
+		ByteBuffer chunk = chunks.get((int) (names[record] >>> 32)).duplicate();
+		chunk.position((int) names[record]);
+		byte[] name = new byte[chunk.getShort() & 0xFFFF];
+		chunk.get(name);
+		return new File(dirPaths.get(dirs[record]), new String(name, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Hash the candidate files and report the groups of duplicates, then the
+	 * groups of hard links. Files are reported in the order they were added.
+	 * @param reporter
+	 * @throws Exception
+	 */
+	public void findDuplicates(Reporter reporter) throws Exception {
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++)
+			order[i] = i;
+		IndexSort.sort(order, new IndexSort.Order() {
+			@Override
+			public int compare(int a, int b) {
+				int cmp = Long.compare(sizes[a], sizes[b]);
+				if (cmp == 0)
+					cmp = Long.compare(devs[a], devs[b]);
+				if (cmp == 0)
+					cmp = Long.compare(inos[a], inos[b]);
+				return cmp != 0 ? cmp : Integer.compare(a, b);
+			}
+		});
+		// One candidate per inode, among sizes shared by distinct inodes
+		int[] candidates = new int[count];
+		int candidateCount = 0;
+		// Runs of order holding the hard links of an inode: start, end
+		int[] links = new int[16];
+		int linkCount = 0;
+		for (int start = 0; start < count; ) {
+			long size = sizes[order[start]];
+			int end = start;
+			int inodes = 0;
+			while (end < count && sizes[order[end]] == size) {
+				int first = end;
+				do {
+					end++;
+				} while (end < count && sizes[order[end]] == size && sameInode(order[end], order[first]));
+				inodes++;
+				if (end - first > 1 && size >= minSize) {
+					if (linkCount * 2 == links.length)
+						links = Arrays.copyOf(links, links.length * 2);
+					links[linkCount * 2] = first;
+					links[linkCount * 2 + 1] = end;
+					linkCount++;
+				}
+			}
+			if (inodes > 1 && size >= minSize) {
+				for (int i = start; i < end; i++) {
+					if (i == start || !sameInode(order[i], order[i - 1]))
+						candidates[candidateCount++] = order[i];
+				}
+			}
+			start = end;
+		}
+		candidates = Arrays.copyOf(candidates, candidateCount);
+		findDuplicates(candidates, reporter);
+		reportLinks(order, links, linkCount, reporter);
+	}
+
+	/**
+	 * Hash the candidates and report those sharing their size and hash.
+	 * @param candidates  Records of distinct inodes sharing their size with another
+	 * @param reporter
+	 * @throws Exception
+	 */
+	private void findDuplicates(final int[] candidates, Reporter reporter) throws Exception {
+		final long[] partials = new long[candidates.length * digestWidth];
+		final long[] digests = new long[candidates.length * digestWidth];
+		final boolean[] failed = new boolean[candidates.length];
+		// Large files: partial hash first
+		int[] large = new int[candidates.length];
+		int largeCount = 0;
+		for (int i = 0; i < candidates.length; i++) {
+			if (sizes[candidates[i]] > partialMinSize)
+				large[largeCount++] = i;
+		}
+		large = Arrays.copyOf(large, largeCount);
+		hash(candidates, large, partials, failed, true);
+		IndexSort.sort(large, new IndexSort.Order() {
+			@Override
+			public int compare(int a, int b) {
+				int cmp = Long.compare(sizes[candidates[a]], sizes[candidates[b]]);
+				return cmp != 0 ? cmp : compareDigests(partials, a, b);
+			}
+		});
+		// Files read entirely: small ones and large ones sharing their partial hash
+		int[] full = new int[candidates.length];
+		int fullCount = 0;
+		for (int i = 0; i < candidates.length; i++) {
+			if (sizes[candidates[i]] <= partialMinSize)
+				full[fullCount++] = i;
+		}
+		for (int i = 0; i < large.length; i++) {
+			if (failed[large[i]])
+				continue;
+			boolean shared = (i > 0 && !failed[large[i - 1]] && sameSizeAndDigest(candidates, partials, large[i], large[i - 1]))
+				|| (i + 1 < large.length && !failed[large[i + 1]] && sameSizeAndDigest(candidates, partials, large[i], large[i + 1]));
+			if (shared)
+				full[fullCount++] = large[i];
+		}
+		full = Arrays.copyOf(full, fullCount);
+		hash(candidates, full, digests, failed, false);
+		IndexSort.sort(full, new IndexSort.Order() {
+			@Override
+			public int compare(int a, int b) {
+				int cmp = Long.compare(sizes[candidates[a]], sizes[candidates[b]]);
+				if (cmp == 0)
+					cmp = compareDigests(digests, a, b);
+				return cmp != 0 ? cmp : Integer.compare(candidates[a], candidates[b]);
+			}
+		});
+		ArrayList<File> group = new ArrayList<File>();
+		int i = 0;
+		while (i < full.length) {
+			if (failed[full[i]]) {
+				i++;
+				continue;
+			}
+			group.clear();
+			int first = full[i];
+			while (i < full.length && !failed[full[i]] && sameSizeAndDigest(candidates, digests, first, full[i]))
+				group.add(getFile(candidates[full[i++]]));
+			if (group.size() > 1)
+				reporter.duplicates(getDigest(digests, first), group);
+		}
+	}
+
+	/**
+	 * Report the groups of hard links, ordered by device and inode.
+	 * @param order      Records ordered by size, device and inode
+	 * @param links      Runs of order holding the hard links of an inode: start, end
+	 * @param linkCount  Count of runs
+	 * @param reporter
+	 * @throws Exception
+	 */
+	private void reportLinks(final int[] order, final int[] links, int linkCount, Reporter reporter) throws Exception {
+		int[] runs = new int[linkCount];
+		for (int i = 0; i < linkCount; i++)
+			runs[i] = i;
+		IndexSort.sort(runs, new IndexSort.Order() {
+			@Override
+			public int compare(int a, int b) {
+				int recordA = order[links[a * 2]];
+				int recordB = order[links[b * 2]];
+				int cmp = Long.compare(devs[recordA], devs[recordB]);
+				return cmp != 0 ? cmp : Long.compare(inos[recordA], inos[recordB]);
+			}
+		});
+		ArrayList<File> group = new ArrayList<File>();
+		for (int run : runs) {
+			group.clear();
+			for (int i = links[run * 2]; i < links[run * 2 + 1]; i++)
+				group.add(getFile(order[i]));
+			reporter.hardLinks(group);
+		}
+	}
+
+	/**
+	 * Hash some of the candidates on the worker threads.
+	 * @param candidates  Records of candidates
+	 * @param selected    Indexes of the candidates to hash
+	 * @param digests     Receives the digests, by candidate index
+	 * @param failed      Set for candidates that could not be hashed
+	 * @param partial     Compute the partial hash rather than the full hash
+	 * @throws Exception
+	 */
+	private void hash(int[] candidates, int[] selected, final long[] digests, final boolean[] failed,
+		final boolean partial) throws Exception {
+		final String kind = partial ? "partial" : "full";
+		HashPipeline.Hashing hashing = new HashPipeline.Hashing() {
+			@Override
+			public byte[] hash(FileHasher hasher, File file) throws Exception {
+				if (partial)
+					return hasher.partialHash(file, partialBlockSize, partialMiddleBlocks);
+				return hasher.hash(file);
+			}
+		};
+		HashPipeline.Writer writer = new HashPipeline.Writer() {
+			@Override
+			public void write(HashPipeline.Job job) throws Exception {
+				if (job.getHash() == null) {
+					System.err.println("ERROR: " + job.getError().getMessage());
+					errorCount++;
+					failed[job.getId()] = true;
+					return;
+				}
+				ByteBuffer digest = ByteBuffer.wrap(Arrays.copyOf(job.getHash(), digestWidth * 8));
+				for (int i = 0; i < digestWidth; i++)
+					digests[job.getId() * digestWidth + i] = digest.getLong();
+			}
+		};
+		HashPipeline pipeline = devices == null
+			? new HashPipeline(threads, queueSize, algorithm, hashing, writer)
+			: new HashPipeline(devices, queueSize, algorithm, hashing, writer);
+		try {
+			pipeline.submit(getSources(candidates, selected));
+			pipeline.finish();
+		} catch (Throwable t) {
+			pipeline.abort();
+			throw t;
+		}
+		if (verbosity > 0)
+			System.err.printf("%d files %s hashed\n", selected.length, kind);
+	}
+
+	/**
+	 * Split some of the candidates by device, for HashPipeline.
+	 * With inodeOrder, the candidates of a spinning disk are in inode order.
+	 * @param candidates  Records of candidates
+	 * @param selected    Indexes of the candidates to hash
+	 * @return  Sources of the selected candidates by device; Job IDs are candidate indexes
+	 */
+	private Map<Long, HashPipeline.Source> getSources(final int[] candidates, int[] selected) {
+		// Devices read in inode order
+		final HashSet<Long> sweeps = new HashSet<Long>();
+		if (inodeOrder) {
+			HashSet<Long> seen = new HashSet<Long>();
+			for (int candidate : selected) {
+				long dev = devs[candidates[candidate]];
+				if (dev != HashPipeline.unknownDev && seen.add(dev) && StorageDevice.classify(
+						getFile(candidates[candidate]).toPath(), dev) == StorageDevice.Kind.ROTATIONAL)
+					sweeps.add(dev);
+			}
+		}
+		final int[] order = Arrays.copyOf(selected, selected.length);
+		IndexSort.sort(order, new IndexSort.Order() {
+			@Override
+			public int compare(int a, int b) {
+				int cmp = Long.compare(devs[candidates[a]], devs[candidates[b]]);
+				if (cmp == 0 && sweeps.contains(devs[candidates[a]]))
+					cmp = Long.compare(inos[candidates[a]], inos[candidates[b]]);
+				return cmp != 0 ? cmp : Integer.compare(a, b);
+			}
+		});
+		LinkedHashMap<Long, HashPipeline.Source> sources = new LinkedHashMap<Long, HashPipeline.Source>();
+		int start = 0;
+		while (start < order.length) {
+			long dev = devs[candidates[order[start]]];
+			int end = start + 1;
+			while (end < order.length && devs[candidates[order[end]]] == dev)
+				end++;
+			final int first = start;
+			final int last = end;
+			sources.put(dev, new HashPipeline.Source() {
+				private int next = first;
+
+				@Override
+				public HashPipeline.Job next() throws Exception {
+					if (next == last)
+						return null;
+					int candidate = order[next++];
+					return new HashPipeline.Job(candidate, getFile(candidates[candidate]));
+				}
+			});
+			start = end;
+		}
+		return sources;
+	}
+
+	/**
+	 * @return  True if records a and b are hard links to the same inode
+	 */
+	private boolean sameInode(int a, int b) {
+		return devs[a] == devs[b] && inos[a] == inos[b];
+	}
+
+	/**
+	 * @return  True if candidates a and b have the same size and digest
+	 */
+	private boolean sameSizeAndDigest(int[] candidates, long[] digests, int a, int b) {
+		return sizes[candidates[a]] == sizes[candidates[b]] && compareDigests(digests, a, b) == 0;
+	}
+
+	/**
+	 * Compare digests as unsigned bytes, like the database does.
+	 * @return  Negative, zero or positive as the digest of a is lower, equal or higher
+	 */
+	private int compareDigests(long[] digests, int a, int b) {
+		for (int i = 0; i < digestWidth; i++) {
+			int cmp = Long.compareUnsigned(digests[a * digestWidth + i], digests[b * digestWidth + i]);
+			if (cmp != 0)
+				return cmp;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return  Digest of candidate
+	 */
+	private byte[] getDigest(long[] digests, int candidate) {
+		ByteBuffer digest = ByteBuffer.allocate(digestWidth * 8);
+		for (int i = 0; i < digestWidth; i++)
+			digest.putLong(digests[candidate * digestWidth + i]);
+		return Arrays.copyOf(digest.array(), digestLength);
+	}
+}
@@ -0,0 +1,289 @@
+/* File: QueryServer.java
+ * Author: Don Stokes <myFirstName AT myFullName DOT com>
+ * Purpose:
+ *  Serve scan, report and lookup requests from a process keeping the
+ *  database open, so each request skips JVM start, database boot and
+ *  statement preparation.
+ * Operation:
+ *  Plain HTTP on the loopback interface only. Each request must carry the
+ *  secret token the server writes to a file only its user can read, in the
+ *  X-FindDupFiles-Token header; requests made by web pages (with an Origin
+ *  header) are refused. Responses are the text the command line would
+ *  print, in UTF-8:
+ *   GET  /report                 Report all duplicates
+ *   GET  /lookup?path=F[&path=G] Report the duplicates of files (404 if not recorded)
+ *   POST /scan?dir=D[&dir=E]     Scan directories, then report all duplicates
+ *   POST /stop                   Stop the server
+ *  Requests are served one at a time by the Service.
+ *  send() is the client side, used by --client; curl works as well.
+ * Copyright 2019 Don Stokes
+ */
+/*******************************************************************************
+     This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.stokedpenguin.finddupfiles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.stokedpenguin.util.Util;
+
+public class QueryServer {
+	/** Port used unless another is given */
+	public static final int defaultPort = 7317;
+	private static final String charset = "UTF-8";
+	/** Request header carrying the token */
+	public static final String tokenHeader = "X-FindDupFiles-Token";
+	private HttpServer server;
+	private Service service;
+	/** Secret expected in every request */
+	private byte[] token;
+	/** Released by a stop request */
+	private CountDownLatch stopped = new CountDownLatch(1);
+
+	/**
+	 * Requests served
+	 * Implemented by client, called on the server thread
+	 * @author don
+	 */
+	public static interface Service {
+		/**
+		 * @param out  Receives the report
+		 * @throws Exception
+		 */
+		void report(PrintStream out) throws Exception;
+		/**
+		 * @param out    Receives the report
+		 * @param files  Files to report the duplicates of
+		 * @return  False if a file is not recorded
+		 * @throws Exception
+		 */
+		boolean lookup(PrintStream out, List<File> files) throws Exception;
+		/**
+		 * @param out   Receives the report
+		 * @param dirs  Directories to scan
+		 * @throws Exception
+		 */
+		void scan(PrintStream out, List<File> dirs) throws Exception;
+	}
+
+	/**
+	 * Constructor
+	 * @param port       Loopback port to listen on
+	 * @param tokenFile  Receives a new token, readable by the user only
+	 * @param service    Serves the requests
+	 * @throws IOException
+	 */
+	public QueryServer(int port, File tokenFile, Service service) throws IOException {
+		this.service = service;
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		// Once the port is ours, so a server already running keeps its token
+		token = writeToken(tokenFile);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+	}
+
+	/**
+	 * Start serving requests on a thread of the server.
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Wait for a stop request, then stop serving.
+	 * @throws InterruptedException
+	 */
+	public void waitForStop() throws InterruptedException {
+		stopped.await();
+		server.stop(0);
+	}
+
+	/**
+	 * Serve a request.
+	 * @param exchange
+	 * @throws IOException
+	 */
+	private void serve(HttpExchange exchange) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(buffer, true, charset);
+		String method = exchange.getRequestMethod();
+		String path = exchange.getRequestURI().getPath();
+		int status = 200;
+		boolean stop = false;
+		try {
+			String sent = exchange.getRequestHeaders().getFirst(tokenHeader);
+			if (sent == null || !MessageDigest.isEqual(token, sent.getBytes(StandardCharsets.US_ASCII))
+					|| exchange.getRequestHeaders().containsKey("Origin")) {
+				status = 403;
+				out.println("token expected in " + tokenHeader + " header");
+			} else if (method.equals("GET") && path.equals("/report")) {
+				service.report(out);
+			} else if (method.equals("GET") && path.equals("/lookup")) {
+				List<File> files = getFiles(exchange, "path");
+				if (files.isEmpty())
+					status = badRequest(out, "path parameter expected");
+				else if (!service.lookup(out, files))
+					status = 404;
+			} else if (method.equals("POST") && path.equals("/scan")) {
+				List<File> dirs = getFiles(exchange, "dir");
+				for (File dir : dirs) {
+					if (!dir.isDirectory())
+						status = badRequest(out, "directory does not exist: " + dir.getPath());
+				}
+				if (status == 200)
+					service.scan(out, dirs);
+			} else if (method.equals("POST") && path.equals("/stop")) {
+				stop = true;
+			} else {
+				status = 404;
+				out.println("unknown request: " + method + " " + path);
+			}
+		} catch (Throwable t) {
+			status = 500;
+			out.println("ERROR: " + t);
+		}
+		out.flush();
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=" + charset);
+		try {
+			exchange.sendResponseHeaders(status, buffer.size() == 0 ? -1 : buffer.size());
+			OutputStream body = exchange.getResponseBody();
+			buffer.writeTo(body);
+			body.close();
+		} finally {
+			// Once answered, as stopping drops the open exchanges
+			if (stop)
+				stopped.countDown();
+		}
+	}
+
+	private static int badRequest(PrintStream out, String message) {
+		out.println(message);
+		return 400;
+	}
+
+	/**
+	 * @param exchange
+	 * @param name  Name of query parameter
+	 * @return  Absolute files named by the values of the parameter
+	 * @throws IOException
+	 */
+	private static List<File> getFiles(HttpExchange exchange, String name) throws IOException {
+		List<File> files = new ArrayList<File>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null)
+			return files;
+		for (String param : query.split("&")) {
+			int equals = param.indexOf('=');
+			if (equals > 0 && param.substring(0, equals).equals(name))
+				files.add(new File(URLDecoder.decode(param.substring(equals + 1), charset)).getAbsoluteFile());
+		}
+		return files;
+	}
+
+	/**
+	 * Write a new random token to a file only the user can read.
+	 * @param tokenFile
+	 * @return  Token
+	 * @throws IOException
+	 */
+	private static byte[] writeToken(File tokenFile) throws IOException {
+		byte[] random = new byte[32];
+		new SecureRandom().nextBytes(random);
+		byte[] token = Util.toHex(random).getBytes(StandardCharsets.US_ASCII);
+		// Created afresh, so no one else holds it open
+		Files.deleteIfExists(tokenFile.toPath());
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(tokenFile.toPath(),
+				PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createFile(tokenFile.toPath());
+			tokenFile.setReadable(false, false);
+			tokenFile.setReadable(true, true);
+		}
+		Files.write(tokenFile.toPath(), token, StandardOpenOption.TRUNCATE_EXISTING);
+		return token;
+	}
+
+	/**
+	 * Send a request to a server and copy its response to out.
+	 * @param port       Loopback port of server
+	 * @param tokenFile  Holds the token written by the server
+	 * @param method     GET or POST
+	 * @param path       Request path
+	 * @param name       Name of the query parameter of files, may be null
+	 * @param files      Values of the parameter
+	 * @param out        Receives the response
+	 * @return  HTTP status of response
+	 * @throws IOException  if the server can't be reached
+	 */
+	public static int send(int port, File tokenFile, String method, String path, String name, List<File> files,
+			PrintStream out) throws IOException {
+		String token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.US_ASCII).trim();
+		StringBuilder request = new StringBuilder(path);
+		char separator = '?';
+		for (File file : files) {
+			request.append(separator).append(name).append('=');
+			request.append(URLEncoder.encode(file.getAbsolutePath(), charset));
+			separator = '&';
+		}
+		URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), port, request.toString());
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setRequestMethod(method);
+		conn.setRequestProperty(tokenHeader, token);
+		// Scans can take long
+		conn.setReadTimeout(0);
+		int status = conn.getResponseCode();
+		InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+		if (in != null) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			byte[] bytes = new byte[8192];
+			int count;
+			while ((count = in.read(bytes)) > 0)
+				buffer.write(bytes, 0, count);
+			in.close();
+			out.print(buffer.toString(charset));
+			out.flush();
+		}
+		conn.disconnect();
+		return status;
+	}
+}
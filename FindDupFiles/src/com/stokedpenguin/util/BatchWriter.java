@@ -0,0 +1,66 @@
+package com.stokedpenguin.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.LinkedHashSet;
+
+/**
+ * Groups JDBC updates into batches committed together.
+ * A batch is executed and committed once it holds a given count of rows
+ * or once a given time has passed since the previous commit, whichever
+ * comes first. A crash loses at most the rows of the current batch.
+ * Statements are executed in the order they first joined the batch.
+ * @author don
+ */
+public class BatchWriter {
+	private Connection conn;
+	/** Rows per commit */
+	private int batchSize;
+	/** Milliseconds between commits */
+	private long commitMillis;
+	/** Statements with rows added since the last commit */
+	private LinkedHashSet<PreparedStatement> pending = new LinkedHashSet<PreparedStatement>();
+	/** Count of rows added since the last commit */
+	private int rows = 0;
+	/** Time of the last commit */
+	private long lastCommit = System.currentTimeMillis();
+
+	/**
+	 * Constructor
+	 * @param conn          Connection with auto commit disabled
+	 * @param batchSize     Rows per commit
+	 * @param commitMillis  Milliseconds between commits
+	 */
+	public BatchWriter(Connection conn, int batchSize, long commitMillis) {
+		this.conn = conn;
+		this.batchSize = batchSize;
+		this.commitMillis = commitMillis;
+	}
+
+	/**
+	 * Add the current parameters of the statement to the batch.
+	 * Commits if the batch is full or due.
+	 * @param stmnt  Statement with all parameters set
+	 * @throws Exception
+	 */
+	public void add(PreparedStatement stmnt) throws Exception {
+		stmnt.addBatch();
+		pending.add(stmnt);
+		rows++;
+		if (rows >= batchSize || System.currentTimeMillis() - lastCommit >= commitMillis)
+			flush();
+	}
+
+	/**
+	 * Execute and commit all rows added so far.
+	 * @throws Exception
+	 */
+	public void flush() throws Exception {
+		for (PreparedStatement stmnt : pending)
+			stmnt.executeBatch();
+		conn.commit();
+		pending.clear();
+		rows = 0;
+		lastCommit = System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,224 @@
+package com.stokedpenguin.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the contents of a group of files byte for byte.
+ * The files of a group are open at once and read chunk by chunk in
+ * lockstep. The group is split into sub-groups as soon as a chunk differs,
+ * so each file is read once at most.
+ * A group too large to open at once is compared in batches against its
+ * first file, taking out the files identical to it, until the rest fits.
+ * Not thread safe; use one instance per thread.
+ * @author don
+ */
+public class ContentComparer {
+	/** Smallest chunk read from each file */
+	private static final int minChunkSize = 4 * 1024;
+	/** Largest chunk read from each file */
+	private static final int maxChunkSize = 1024 * 1024;
+	/** Most files open at once, well below the usual limit of file descriptors */
+	private static final int maxOpenFiles = 64;
+	/** Bytes of chunk buffers shared by the files of a group */
+	private int memory;
+	/** Files that could not be compared by the last call, with the reason */
+	private Map<File, IOException> failures = new LinkedHashMap<File, IOException>();
+
+	/**
+	 * An open file and its last chunk read
+	 */
+	private static class Member {
+		File file;
+		FileChannel channel;
+		ByteBuffer chunk;
+	}
+
+	/**
+	 * Constructor
+	 * @param memory  Bytes of chunk buffers shared by the files of a group
+	 */
+	public ContentComparer(int memory) {
+		this.memory = memory;
+	}
+
+	/**
+	 * Split a group of files into sub-groups of identical contents.
+	 * @param files
+	 * @return  Sub-groups of at least two files, in the order of files
+	 */
+	public List<List<File>> compare(List<File> files) {
+		failures.clear();
+		List<List<File>> identical = new ArrayList<List<File>>();
+		List<File> remaining = files;
+		while (remaining.size() > maxOpenFiles) {
+			File first = remaining.get(0);
+			List<File> same = new ArrayList<File>();
+			same.add(first);
+			List<File> rest = new ArrayList<File>();
+			for (int i = 1; i < remaining.size(); i += maxOpenFiles - 1) {
+				List<File> batch = new ArrayList<File>(remaining.subList(i, Math.min(remaining.size(), i + maxOpenFiles - 1)));
+				if (failures.containsKey(first)) {
+					rest.addAll(batch);
+					continue;
+				}
+				batch.add(0, first);
+				List<File> match = null;
+				for (List<File> group : compareOpen(batch)) {
+					if (group.get(0) == first)
+						match = group;
+				}
+				for (File file : batch) {
+					if (file == first || failures.containsKey(file))
+						continue;
+					if (match != null && match.contains(file))
+						same.add(file);
+					else
+						rest.add(file);
+				}
+			}
+			if (same.size() > 1 && !failures.containsKey(first))
+				identical.add(same);
+			remaining = rest;
+		}
+		identical.addAll(compareOpen(remaining));
+		return identical;
+	}
+
+	/**
+	 * Split a group of files into sub-groups of identical contents, all files open at once.
+	 * @param files  At most maxOpenFiles
+	 * @return  Sub-groups of at least two files, in the order of files
+	 */
+	private List<List<File>> compareOpen(List<File> files) {
+		List<List<File>> identical = new ArrayList<List<File>>();
+		int chunkSize = Math.max(minChunkSize, Math.min(maxChunkSize, memory / Math.max(1, files.size())));
+		List<Member> all = new ArrayList<Member>();
+		try {
+			for (File file : files) {
+				Member member = new Member();
+				member.file = file;
+				try {
+					member.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				} catch (IOException e) {
+					failures.put(file, e);
+					continue;
+				}
+				member.chunk = ByteBuffer.allocate(chunkSize);
+				all.add(member);
+			}
+			// Groups not yet read to the end, each split depth first
+			Deque<List<Member>> groups = new ArrayDeque<List<Member>>();
+			groups.push(all);
+			while (!groups.isEmpty()) {
+				List<Member> group = groups.pop();
+				if (group.size() < 2) {
+					close(group);
+					continue;
+				}
+				boolean atEnd = true;
+				for (Member member : group) {
+					read(member);
+					if (member.chunk.hasRemaining())
+						atEnd = false;
+				}
+				List<List<Member>> split = split(group);
+				if (atEnd && split.size() == 1) {
+					List<File> same = new ArrayList<File>();
+					for (Member member : split.get(0))
+						same.add(member.file);
+					identical.add(same);
+					close(group);
+					continue;
+				}
+				// Pushed in reverse so sub-groups come out in order
+				for (int i = split.size() - 1; i >= 0; i--)
+					groups.push(split.get(i));
+			}
+		} finally {
+			close(all);
+		}
+		return identical;
+	}
+
+	/**
+	 * @return  Files that could not be compared by the last call, with the reason
+	 */
+	public Map<File, IOException> getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Read the next chunk of a member, as much as available up to the chunk size.
+	 * A member failing to read is recorded and left with an empty chunk.
+	 * @param member
+	 */
+	private void read(Member member) {
+		member.chunk.clear();
+		try {
+			while (member.chunk.hasRemaining()) {
+				if (member.channel.read(member.chunk) < 0)
+					break;
+			}
+		} catch (IOException e) {
+			failures.put(member.file, e);
+			member.chunk.clear();
+		}
+		member.chunk.flip();
+	}
+
+	/**
+	 * Partition a group by the content of the last chunk read.
+	 * Members that failed to read are dropped.
+	 * @param group
+	 * @return  Sub-groups, in the order of their first member
+	 */
+	private List<List<Member>> split(List<Member> group) {
+		List<List<Member>> split = new ArrayList<List<Member>>();
+		for (Member member : group) {
+			if (failures.containsKey(member.file)) {
+				close(member);
+				continue;
+			}
+			List<Member> match = null;
+			for (List<Member> sub : split) {
+				if (sub.get(0).chunk.equals(member.chunk)) {
+					match = sub;
+					break;
+				}
+			}
+			if (match == null) {
+				match = new ArrayList<Member>();
+				split.add(match);
+			}
+			match.add(member);
+		}
+		return split;
+	}
+
+	private static void close(List<Member> members) {
+		for (Member member : members)
+			close(member);
+	}
+
+	private static void close(Member member) {
+		if (member.channel == null)
+			return;
+		try {
+			member.channel.close();
+		} catch (IOException e) {
+			// Only read from
+		}
+		member.channel = null;
+		member.chunk = null;
+	}
+}
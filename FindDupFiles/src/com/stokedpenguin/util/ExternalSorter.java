@@ -0,0 +1,303 @@
+package com.stokedpenguin.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts fixed-length records in bounded memory.
+ * Records are collected in a buffer; each time it is full, it is sorted and
+ * written to a run file. The runs are then merged k ways. Records compare
+ * as unsigned bytes, so keys must be encoded big-endian (see putLong).
+ * Not thread safe.
+ * @author don
+ */
+public class ExternalSorter {
+	/** Bytes of the read buffer of each run while merging */
+	private static final int runBufferSize = 64 * 1024;
+	/** Most runs merged at once, bounding open files and buffers */
+	private static final int maxMergeWays = 128;
+	/** Bytes per record */
+	private int recordSize;
+	/** Directory receiving the run files */
+	private File tempDir;
+	/** Records not yet written to a run */
+	private byte[] buffer;
+	/** Count of records in buffer */
+	private int count = 0;
+	/** Run files written so far */
+	private ArrayList<File> runs = new ArrayList<File>();
+	/** Open runs while merging */
+	private ArrayList<DataInputStream> inputs = new ArrayList<DataInputStream>();
+
+	/**
+	 * Reads sorted records
+	 * @author don
+	 */
+	public static interface Reader {
+		/**
+		 * @param record  Receives the next record
+		 * @return  False once all records have been read
+		 * @throws IOException
+		 */
+		boolean next(byte[] record) throws IOException;
+	}
+
+	/**
+	 * A run being merged and its current record
+	 */
+	private class Run implements Comparable<Run> {
+		DataInputStream input;
+		byte[] record = new byte[recordSize];
+
+		Run(DataInputStream input) {
+			this.input = input;
+		}
+
+		/**
+		 * @return  False at the end of the run
+		 * @throws IOException
+		 */
+		boolean advance() throws IOException {
+			try {
+				input.readFully(record);
+				return true;
+			} catch (EOFException e) {
+				return false;
+			}
+		}
+
+		@Override
+		public int compareTo(Run other) {
+			return compare(record, 0, other.record, 0, recordSize);
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param recordSize  Bytes per record
+	 * @param memory      Bytes of records held in memory
+	 * @param tempDir     Directory receiving the run files
+	 */
+	public ExternalSorter(int recordSize, long memory, File tempDir) {
+		this.recordSize = recordSize;
+		this.tempDir = tempDir;
+		buffer = new byte[(int) Math.max(1, Math.min(memory / recordSize, Integer.MAX_VALUE / recordSize)) * recordSize];
+	}
+
+	/**
+	 * Add a record.
+	 * @param record  recordSize bytes
+	 * @throws IOException
+	 */
+	public void add(byte[] record) throws IOException {
+		if ((count + 1) * recordSize > buffer.length)
+			spill();
+		System.arraycopy(record, 0, buffer, count * recordSize, recordSize);
+		count++;
+	}
+
+	/**
+	 * Sort the records added.
+	 * @return  Reader of the records in order; valid until close()
+	 * @throws IOException
+	 */
+	public Reader sort() throws IOException {
+		final int[] order = sortBuffer();
+		if (runs.isEmpty()) {
+			return new Reader() {
+				private int next = 0;
+				@Override
+				public boolean next(byte[] record) {
+					if (next == count)
+						return false;
+					System.arraycopy(buffer, order[next++] * recordSize, record, 0, recordSize);
+					return true;
+				}
+			};
+		}
+		write(order);
+		buffer = null;
+		// Merge the oldest runs into longer ones until few enough remain
+		while (runs.size() > maxMergeWays) {
+			List<File> merged = new ArrayList<File>(runs.subList(0, maxMergeWays));
+			runs.subList(0, maxMergeWays).clear();
+			Reader reader = merge(merged);
+			File file = newRun();
+			OutputStream output = new BufferedOutputStream(new FileOutputStream(file), runBufferSize);
+			try {
+				byte[] record = new byte[recordSize];
+				while (reader.next(record))
+					output.write(record);
+			} finally {
+				output.close();
+			}
+			closeInputs();
+			for (File run : merged)
+				run.delete();
+		}
+		return merge(runs);
+	}
+
+	/**
+	 * Open runs for merging.
+	 * @param files  Runs
+	 * @return  Reader of the records of all runs, in order
+	 * @throws IOException
+	 */
+	private Reader merge(List<File> files) throws IOException {
+		final PriorityQueue<Run> queue = new PriorityQueue<Run>(files.size());
+		for (File file : files) {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), runBufferSize));
+			inputs.add(input);
+			Run run = new Run(input);
+			if (run.advance())
+				queue.add(run);
+		}
+		return new Reader() {
+			@Override
+			public boolean next(byte[] record) throws IOException {
+				Run run = queue.poll();
+				if (run == null)
+					return false;
+				System.arraycopy(run.record, 0, record, 0, recordSize);
+				if (run.advance())
+					queue.add(run);
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @return  Count of run files written
+	 */
+	public int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * Delete the run files.
+	 */
+	public void close() {
+		closeInputs();
+		for (File file : runs)
+			file.delete();
+		runs.clear();
+	}
+
+	/**
+	 * Close the runs opened for merging.
+	 */
+	private void closeInputs() {
+		for (DataInputStream input : inputs) {
+			try {
+				input.close();
+			} catch (IOException e) {
+				// Only read from
+			}
+		}
+		inputs.clear();
+	}
+
+	/**
+	 * Encode a long so that its unsigned big-endian bytes order like the signed value.
+	 * @param record
+	 * @param offset
+	 * @param value
+	 */
+	public static void putLong(byte[] record, int offset, long value) {
+		value ^= Long.MIN_VALUE;
+		for (int i = 7; i >= 0; i--) {
+			record[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	/**
+	 * Decode a long encoded by putLong.
+	 * @param record
+	 * @param offset
+	 * @return
+	 */
+	public static long getLong(byte[] record, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++)
+			value = value << 8 | (record[offset + i] & 0xFF);
+		return value ^ Long.MIN_VALUE;
+	}
+
+	/**
+	 * Compare byte ranges as unsigned bytes.
+	 * @return  Negative, zero or positive as range a is lower, equal or higher
+	 */
+	public static int compare(byte[] a, int offsetA, byte[] b, int offsetB, int length) {
+		for (int i = 0; i < length; i++) {
+			int cmp = (a[offsetA + i] & 0xFF) - (b[offsetB + i] & 0xFF);
+			if (cmp != 0)
+				return cmp;
+		}
+		return 0;
+	}
+
+	/**
+	 * Sort the buffered records and write them to a new run.
+	 * @throws IOException
+	 */
+	private void spill() throws IOException {
+		write(sortBuffer());
+		count = 0;
+	}
+
+	/**
+	 * @return  Indexes of the buffered records, in order
+	 */
+	private int[] sortBuffer() {
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++)
+			order[i] = i;
+		IndexSort.sort(order, new IndexSort.Order() {
+			@Override
+			public int compare(int a, int b) {
+				return ExternalSorter.compare(buffer, a * recordSize, buffer, b * recordSize, recordSize);
+			}
+		});
+		return order;
+	}
+
+	/**
+	 * Create a run file, deleted by close() or at exit.
+	 * @return  Empty run, appended to runs
+	 * @throws IOException
+	 */
+	private File newRun() throws IOException {
+		File file = File.createTempFile("sort", ".run", tempDir);
+		file.deleteOnExit();
+		runs.add(file);
+		return file;
+	}
+
+	/**
+	 * Write the buffered records to a new run file.
+	 * @param order  Indexes of the buffered records, in order
+	 * @throws IOException
+	 */
+	private void write(int[] order) throws IOException {
+		File file = newRun();
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(file), runBufferSize);
+		try {
+			for (int index : order)
+				output.write(buffer, index * recordSize, recordSize);
+		} finally {
+			output.close();
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.stokedpenguin.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads files and feeds their contents to a Hasher.
+ * Not thread safe; use one instance per thread.
+ * @author don
+ */
+public class FileHasher {
+	/** Bytes per read into the reusable buffer */
+	private static final int bufferSize = 1024 * 1024;
+	/** Files at least this large are mapped into memory rather than read */
+	private static final long mapMinSize = 64L * 1024 * 1024;
+	/** Bytes mapped at a time for large files */
+	private static final long mapWindowSize = 64L * 1024 * 1024;
+	/** Algorithm fed with the file contents */
+	private Hasher hasher;
+	/** Reused for every read, direct so the channel can fill it without a copy */
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+	
+	/**
+	 * Constructor
+	 * @param hasher  Algorithm fed with the file contents
+	 */
+	public FileHasher(Hasher hasher) {
+		this.hasher = hasher;
+	}
+
+	/**
+	 * @return  Name of the hash algorithm
+	 */
+	public String getName() {
+		return hasher.getName();
+	}
+
+	/**
+	 * Compute the hash of the specified file.
+	 * @param file
+	 * @return Digest
+	 * @throws Exception
+	 */
+	public byte[] hash(File file) throws Exception {
+		hasher.reset();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		long size;
+		long total = 0;
+		try {
+			size = channel.size();
+			if (size >= mapMinSize) {
+				while (total < size) {
+					long window = Math.min(mapWindowSize, size - total);
+					MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, total, window);
+					hasher.update(mapped);
+					total += window;
+				}
+			} else {
+				int count;
+				buffer.clear();
+				while ((count = channel.read(buffer)) > 0) {
+					buffer.flip();
+					hasher.update(buffer);
+					buffer.clear();
+					total += count;
+				}
+			}
+		} finally {
+			channel.close();
+		}
+		if (total != size)
+			System.err.println("file read size mismatch on " + file.getAbsolutePath() + " expected " + size + " read " + total);
+		return hasher.digest();
+	}
+
+	/**
+	 * Compute a hash over a sample of the specified file: the first block,
+	 * the last block and a few blocks evenly spaced in between.
+	 * Files not larger than the sample are hashed entirely.
+	 * @param file
+	 * @param blockSize     Bytes per sampled block, at most 1 MB
+	 * @param middleBlocks  Count of blocks sampled between the first and last
+	 * @return Digest
+	 * @throws Exception
+	 */
+	public byte[] partialHash(File file, int blockSize, int middleBlocks) throws Exception {
+		hasher.reset();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long length = channel.size();
+			int blocks = middleBlocks + 2;
+			for (int block = 0; block < blocks; block++) {
+				// Spread the blocks so the first starts at 0 and the last ends at length
+				long offset = 0;
+				if (length > blockSize)
+					offset = (length - blockSize) * block / (blocks - 1);
+				int count = (int) Math.min(blockSize, length - offset);
+				buffer.clear();
+				buffer.limit(count);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, offset + buffer.position()) < 0)
+						throw new EOFException("file truncated: " + file.getAbsolutePath());
+				}
+				buffer.flip();
+				hasher.update(buffer);
+				if (length <= blockSize)
+					break;
+			}
+		} finally {
+			channel.close();
+		}
+		return hasher.digest();
+	}
+}
@@ -0,0 +1,34 @@
+package com.stokedpenguin.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental hash algorithm.
+ * Implementations are not thread safe; use one instance per thread.
+ * See Hashers for the available algorithms.
+ * @author don
+ */
+public interface Hasher {
+	/**
+	 * @return  Algorithm name, as accepted by Hashers.create()
+	 */
+	String getName();
+
+	/**
+	 * Discard any data hashed so far.
+	 */
+	void reset();
+
+	/**
+	 * Hash the remaining bytes of the buffer.
+	 * The buffer position is advanced to its limit.
+	 * @param data
+	 */
+	void update(ByteBuffer data);
+
+	/**
+	 * Complete the hash and reset.
+	 * @return  Hash bytes
+	 */
+	byte[] digest();
+}
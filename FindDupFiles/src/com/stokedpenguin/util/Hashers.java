@@ -0,0 +1,46 @@
+package com.stokedpenguin.util;
+
+/**
+ * Factory for the available Hasher implementations.
+ * @author don
+ */
+public class Hashers {
+	/** Algorithm used by previous versions; keeps existing databases valid */
+	public static final String defaultName = "md5";
+	/** Names accepted by create() */
+	private static final String[] names = { "md5", "sha-256", "xxh64" };
+
+	/**
+	 * @return  Names of the available algorithms
+	 */
+	public static String[] getNames() {
+		return names.clone();
+	}
+
+	/**
+	 * @param name  Algorithm name
+	 * @return  True if create() accepts the name
+	 */
+	public static boolean isAvailable(String name) {
+		for (String available : names)
+			if (available.equals(name))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Create a new instance of the named algorithm.
+	 * @param name  One of getNames()
+	 * @return  New Hasher
+	 * @throws Exception  if the name is unknown
+	 */
+	public static Hasher create(String name) throws Exception {
+		if (name.equals("md5"))
+			return new MessageDigestHasher(name, "MD5");
+		if (name.equals("sha-256"))
+			return new MessageDigestHasher(name, "SHA-256");
+		if (name.equals("xxh64"))
+			return new XxHash64();
+		throw new Exception("unknown hash algorithm: " + name);
+	}
+}
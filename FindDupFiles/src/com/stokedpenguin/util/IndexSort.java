@@ -0,0 +1,51 @@
+package com.stokedpenguin.util;
+
+/**
+ * Sorts arrays of int indexes by an order defined on what they index,
+ * without boxing them.
+ * @author don
+ */
+public class IndexSort {
+	/**
+	 * Order of the indexed elements
+	 * Implemented by client
+	 * @author don
+	 */
+	public static interface Order {
+		int compare(int a, int b);
+	}
+
+	/**
+	 * Stable sort of indexes (bottom-up merge sort).
+	 * @param indexes
+	 * @param order
+	 */
+	public static void sort(int[] indexes, Order order) {
+		sort(indexes, indexes.length, order);
+	}
+
+	/**
+	 * Stable sort of the first indexes of an array (bottom-up merge sort).
+	 * @param indexes
+	 * @param length  Count of indexes to sort
+	 * @param order
+	 */
+	public static void sort(int[] indexes, int length, Order order) {
+		int[] buffer = new int[length];
+		for (int width = 1; width < length; width *= 2) {
+			for (int start = 0; start < length; start += 2 * width) {
+				int middle = Math.min(start + width, length);
+				int end = Math.min(start + 2 * width, length);
+				int left = start;
+				int right = middle;
+				for (int i = start; i < end; i++) {
+					if (left < middle && (right >= end || order.compare(indexes[left], indexes[right]) <= 0))
+						buffer[i] = indexes[left++];
+					else
+						buffer[i] = indexes[right++];
+				}
+			}
+			System.arraycopy(buffer, 0, indexes, 0, length);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.stokedpenguin.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Hasher backed by a java.security.MessageDigest (MD5, SHA-256, ...).
+ * @author don
+ */
+public class MessageDigestHasher implements Hasher {
+	private String name;
+	private MessageDigest digest;
+
+	/**
+	 * Constructor
+	 * @param name       Algorithm name reported by getName()
+	 * @param algorithm  MessageDigest algorithm name
+	 * @throws Exception  if the algorithm is not available
+	 */
+	public MessageDigestHasher(String name, String algorithm) throws Exception {
+		this.name = name;
+		digest = MessageDigest.getInstance(algorithm);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void reset() {
+		digest.reset();
+	}
+
+	@Override
+	public void update(ByteBuffer data) {
+		digest.update(data);
+	}
+
+	@Override
+	public byte[] digest() {
+		return digest.digest();
+	}
+}
@@ -14,4 +14,36 @@ public class Util {
 	public static File getHomeDir() {
 		return new File(System.getenv("HOME"));
 	}
+
+	/**
+	 * @param bytes
+	 * @return  Lower case hex notation, two characters per byte
+	 */
+	public static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * @param hex  Hex notation, two characters per byte
+	 * @return  Bytes noted
+	 * @throws NumberFormatException  if hex is not valid hex notation
+	 */
+	public static byte[] fromHex(String hex) {
+		if (hex.length() % 2 != 0)
+			throw new NumberFormatException("odd length hex: " + hex);
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int high = Character.digit(hex.charAt(2 * i), 16);
+			int low = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0)
+				throw new NumberFormatException("invalid hex: " + hex);
+			bytes[i] = (byte) (high << 4 | low);
+		}
+		return bytes;
+	}
 }
@@ -0,0 +1,154 @@
+package com.stokedpenguin.util.file;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+/**
+ * Device and inode numbers identifying the storage of a file.
+ * Paths with the same identity are hard links to the same content.
+ * A symbolic link has the identity of the link, not of its target,
+ * so it is never taken for a hard link of its target.
+ * Only available on file systems offering the "unix" attribute view.
+ * @author don
+ */
+public class FileIdentity {
+	/** True if the default file system offers the "unix" attribute view */
+	private static final boolean supported =
+		FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+	/** Attributes read by readAttributes() */
+	private static final String unixAttributes =
+		"unix:size,lastModifiedTime,lastAccessTime,creationTime,isRegularFile,isDirectory,isSymbolicLink,isOther,fileKey,dev,ino";
+	private long dev;
+	private long ino;
+
+	/**
+	 * Constructor
+	 * @param dev  Device number
+	 * @param ino  Inode number
+	 */
+	public FileIdentity(long dev, long ino) {
+		this.dev = dev;
+		this.ino = ino;
+	}
+
+	/**
+	 * Read the identity of a file.
+	 * @param path
+	 * @return  Identity, null if the file system doesn't provide one
+	 * @throws IOException
+	 */
+	public static FileIdentity read(Path path) throws IOException {
+		if (!supported)
+			return null;
+		return ((IdentifiedAttributes) readAttributes(path)).identity;
+	}
+
+	/**
+	 * Read the basic attributes of a file together with its identity, with a
+	 * single stat unless path is a symbolic link.
+	 * The attributes of a link are those of its target, except for
+	 * isSymbolicLink(), which tells if path itself is a link.
+	 * @param path
+	 * @return  Attributes, carrying the identity for of()
+	 * @throws IOException
+	 */
+	public static BasicFileAttributes readAttributes(Path path) throws IOException {
+		if (!supported)
+			return Files.readAttributes(path, BasicFileAttributes.class);
+		Map<String, Object> own = Files.readAttributes(path, unixAttributes, LinkOption.NOFOLLOW_LINKS);
+		if (!(Boolean) own.get("isSymbolicLink"))
+			return new IdentifiedAttributes(own, own);
+		Map<String, Object> target = Files.readAttributes(path, unixAttributes);
+		return new IdentifiedAttributes(target, own);
+	}
+
+	/**
+	 * @param path
+	 * @param attrs  Attributes of path, may be null
+	 * @return  Identity carried by attrs if read by readAttributes(), else read from path
+	 * @throws IOException
+	 */
+	public static FileIdentity of(Path path, BasicFileAttributes attrs) throws IOException {
+		if (attrs instanceof IdentifiedAttributes)
+			return ((IdentifiedAttributes) attrs).identity;
+		return read(path);
+	}
+
+	public long getDev() {
+		return dev;
+	}
+
+	public long getIno() {
+		return ino;
+	}
+
+	/**
+	 * Basic attributes read along with the identity
+	 */
+	private static class IdentifiedAttributes implements BasicFileAttributes {
+		private Map<String, Object> attrs;
+		private FileIdentity identity;
+		private boolean symbolicLink;
+
+		/**
+		 * @param attrs  Basic attributes
+		 * @param own    Attributes of the path itself, not followed
+		 */
+		IdentifiedAttributes(Map<String, Object> attrs, Map<String, Object> own) {
+			this.attrs = attrs;
+			symbolicLink = (Boolean) own.get("isSymbolicLink");
+			identity = new FileIdentity(((Number) own.get("dev")).longValue(), ((Number) own.get("ino")).longValue());
+		}
+
+		@Override
+		public FileTime lastModifiedTime() {
+			return (FileTime) attrs.get("lastModifiedTime");
+		}
+
+		@Override
+		public FileTime lastAccessTime() {
+			return (FileTime) attrs.get("lastAccessTime");
+		}
+
+		@Override
+		public FileTime creationTime() {
+			return (FileTime) attrs.get("creationTime");
+		}
+
+		@Override
+		public boolean isRegularFile() {
+			return (Boolean) attrs.get("isRegularFile");
+		}
+
+		@Override
+		public boolean isDirectory() {
+			return (Boolean) attrs.get("isDirectory");
+		}
+
+		@Override
+		public boolean isSymbolicLink() {
+			return symbolicLink;
+		}
+
+		@Override
+		public boolean isOther() {
+			return (Boolean) attrs.get("isOther");
+		}
+
+		@Override
+		public long size() {
+			return ((Number) attrs.get("size")).longValue();
+		}
+
+		@Override
+		public Object fileKey() {
+			return attrs.get("fileKey");
+		}
+	}
+}
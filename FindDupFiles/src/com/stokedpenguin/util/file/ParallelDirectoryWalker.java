@@ -0,0 +1,405 @@
+/* File: ParallelDirectoryWalker.java
+ * Author: Don Stokes <myFirstName AT myFullName DOT com>
+ * Purpose:
+ *  Traverse a directory tree on a pool of threads and call back to caller
+ *  with file/dir names and their attributes.
+ * Operation:
+ *  Each directory is listed with a DirectoryStream and the attributes of each
+ *  entry are read once. Subdirectories are traversed as ForkJoin tasks, so
+ *  idle threads steal work from busy ones. Metadata latency (NFS, huge trees)
+ *  is hidden by having many directories in flight at once.
+ *  Tasks are forked, never joined: a task ends once its directory is done,
+ *  so the Java stack doesn't grow with the depth of the tree, and memory
+ *  holds the directories waiting to be traversed rather than their entries.
+ *  Subdirectories are forked as they are listed; once too many of a directory
+ *  wait for a thread, the thread listing it traverses some itself, so a flat
+ *  directory with millions of subdirectories doesn't queue them all.
+ *  Callbacks are made from several threads at once; clients must synchronize.
+ *  An optional Lister may supply the entries of a directory instead of the
+ *  file system, letting a client skip reading directories known unchanged.
+ *  An optional Filter prunes entries; those it rejects by path are not even
+ *  read, and the trees of the directories it rejects are not traversed.
+ *  Symbolic links to files are notified as files; those to directories
+ *  below the top one are not traversed, so no tree is walked twice or
+ *  without end.
+ * Copyright 2019 Don Stokes
+ */
+/*******************************************************************************
+     This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.stokedpenguin.util.file;
+
+import java.io.File;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ParallelDirectoryWalker {
+	/** Subdirectories of a directory forked and waiting for a thread, beyond which the lister traverses them */
+	private static final int maxQueued = 1000;
+
+	private String topDir = null;
+	private AtomicInteger errorCount = new AtomicInteger();
+	private boolean continueOnErrors = false;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	/** Set when a callback asks to stop (see abort()) or an error aborts the walk */
+	private volatile boolean aborted = false;
+	/** Error aborting the walk, rethrown by walk() */
+	private volatile Exception failure = null;
+	/** Count of directory tasks forked and not yet done */
+	private AtomicLong pending = new AtomicLong();
+	/** Released once no task is pending */
+	private CountDownLatch done;
+	/** Supplies directory entries instead of the file system, may be null */
+	private Lister lister = null;
+	/** Prunes entries before they are notified, may be null */
+	private Filter filter = null;
+
+	/**
+	 * Interface for callback
+	 * Implemented by client, called concurrently from the pool threads
+	 * @author don
+	 */
+	public static interface Notification {
+		/**
+		 * @param file  File found
+		 * @return  False to abort the walk
+		 */
+		boolean onFile(File file);
+		/**
+		 * @param file  Directory found
+		 * @return  False to skip the tree of the directory; to stop the
+		 *  walk instead, call abort()
+		 */
+		boolean onDir(File file);
+		/**
+		 * Called instead of onFile(File), with the attributes the walker read,
+		 * so the client need not stat the file again.
+		 */
+		default boolean onFile(File file, BasicFileAttributes attrs) {
+			return onFile(file);
+		}
+		/**
+		 * Called instead of onDir(File), with the attributes the walker read.
+		 */
+		default boolean onDir(File file, BasicFileAttributes attrs) {
+			return onDir(file);
+		}
+		/**
+		 * Called once all entries of a directory have been notified.
+		 * Its subdirectories may be traversed meanwhile.
+		 * @param dir      Directory listed
+		 * @param entries  Count of files and directories notified
+		 */
+		default void onDirDone(File dir, int entries) {
+		}
+	}
+
+	/**
+	 * Interface for pruning entries, checked before notifying them
+	 * Implemented by client (see PathFilter), called concurrently from the pool threads
+	 * @author don
+	 */
+	public static interface Filter {
+		/**
+		 * Checked before the attributes of the entry are read.
+		 * @param path  Entry of a directory traversed
+		 * @return  False to skip the entry, and the tree of a directory
+		 */
+		boolean acceptPath(Path path);
+		/**
+		 * @param path   Entry accepted by acceptPath
+		 * @param attrs  Attributes of entry
+		 * @return  False to skip the entry, and the tree of a directory
+		 * @throws Exception
+		 */
+		boolean accept(Path path, BasicFileAttributes attrs) throws Exception;
+	}
+
+	/**
+	 * Interface for supplying the entries of a directory
+	 * Implemented by client, called concurrently from the pool threads
+	 * @author don
+	 */
+	public static interface Lister {
+		/**
+		 * @param dir    Directory about to be traversed
+		 * @param attrs  Attributes of dir
+		 * @return  Entries of dir to visit, null to read them from the file system;
+		 *  iterated while they are visited, so they can be streamed
+		 * @throws Exception
+		 */
+		Iterable<Path> list(Path dir, BasicFileAttributes attrs) throws Exception;
+	}
+
+	/**
+	 * Constructor
+	 * @param parentDir  Directory for starting traversal
+	 * @throws Exception
+	 */
+	public ParallelDirectoryWalker(String parentDir) throws Exception {
+		topDir = parentDir;
+		if (!new File(topDir).isDirectory())
+			throw new Exception("directory not found: " + topDir);
+	}
+
+	/**
+	 * Public function to start traversal.
+	 * Returns once the whole tree has been traversed.
+	 * @param notification  Callbacks, made concurrently from the pool threads
+	 * @throws Exception
+	 */
+	public void walk(Notification notification) throws Exception {
+		aborted = false;
+		failure = null;
+		done = new CountDownLatch(1);
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			Path top = Paths.get(topDir);
+			BasicFileAttributes attrs = FileIdentity.readAttributes(top);
+			pending.set(1);
+			pool.execute(new DirTask(top, attrs, notification, null));
+			done.await();
+		} finally {
+			pool.shutdown();
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Traversal of one directory, forking a task per subdirectory
+	 */
+	private class DirTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private Path dir;
+		private BasicFileAttributes dirAttrs;
+		private Notification notification;
+		/** Task of the parent directory, null for the top one */
+		private DirTask parent;
+		/** Count of subdirectories forked and not yet started */
+		private AtomicInteger queued = new AtomicInteger();
+		private int entries = 0;
+
+		DirTask(Path dir, BasicFileAttributes dirAttrs, Notification notification, DirTask parent) {
+			this.dir = dir;
+			this.dirAttrs = dirAttrs;
+			this.notification = notification;
+			this.parent = parent;
+		}
+
+		@Override
+		protected void compute() {
+			if (parent != null)
+				parent.queued.decrementAndGet();
+			try {
+				traverse();
+			} catch (Throwable t) {
+				// Callbacks failing unexpectedly
+				failure = t instanceof Exception ? (Exception) t : new Exception(t);
+				aborted = true;
+			} finally {
+				if (pending.decrementAndGet() == 0)
+					done.countDown();
+			}
+		}
+
+		/**
+		 * Notify the entries of dir, forking the traversal of its subdirectories.
+		 */
+		private void traverse() {
+			if (aborted)
+				return;
+			try {
+				Iterable<Path> listed = null;
+				if (lister != null)
+					listed = lister.list(dir, dirAttrs);
+				if (listed != null) {
+					for (Path path : listed) {
+						if (aborted)
+							break;
+						visit(path);
+					}
+				} else {
+					DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+					try {
+						for (Path path : stream) {
+							if (aborted)
+								break;
+							visit(path);
+						}
+					} finally {
+						stream.close();
+					}
+				}
+				if (!aborted)
+					notification.onDirDone(dir.toFile(), entries);
+			} catch (Exception e) {
+				errorCount.incrementAndGet();
+				if (!continueOnErrors) {
+					failure = e;
+					aborted = true;
+					return;
+				}
+				System.err.println("ERROR: directory not accessible: " + dir + " " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Fork the traversal of a subdirectory. While too many subdirectories
+		 * of dir wait for a thread, run the tasks queued by this thread here.
+		 * @param subdir
+		 */
+		private void fork(DirTask subdir) {
+			pending.incrementAndGet();
+			queued.incrementAndGet();
+			subdir.fork();
+			while (queued.get() > maxQueued) {
+				// Most recently forked first: a subdirectory of dir, or one of its own
+				ForkJoinTask<?> task = pollTask();
+				if (task == null)
+					break;
+				task.invoke();
+			}
+		}
+
+		/**
+		 * Read the attributes of a directory entry and notify the client.
+		 * @param path  Entry of dir
+		 * @throws Exception
+		 */
+		private void visit(Path path) throws Exception {
+			if (aborted)
+				return;
+			if (filter != null && !filter.acceptPath(path))
+				return;
+			BasicFileAttributes attrs;
+			try {
+				attrs = FileIdentity.readAttributes(path);
+			} catch (NoSuchFileException e) {
+				// Deleted since listed, or dangling link
+				return;
+			}
+			if (filter != null && !filter.accept(path, attrs))
+				return;
+			if (attrs.isRegularFile()) {
+				entries++;
+				if (!notification.onFile(path.toFile(), attrs))
+					aborted = true;
+			} else if (attrs.isDirectory() && !attrs.isSymbolicLink()) {
+				entries++;
+				if (notification.onDir(path.toFile(), attrs))
+					fork(new DirTask(path, attrs, notification, this));
+			}
+		}
+	}
+
+	/**
+	 * Stop the walk: no more directories are listed, and no more callbacks
+	 * once those in progress return. Safe to call from a callback.
+	 */
+	public void abort() {
+		aborted = true;
+	}
+
+	/**
+	 * Accessor method for ErrorCount property
+	 * @return
+	 */
+	public int getErrorCount() {
+		return errorCount.get();
+	}
+
+	/**
+	 * Mutator method ContinueOnErrors property
+	 * @param continueOnErrors
+	 */
+	public void setContinueOnErrors(boolean continueOnErrors) {
+		this.continueOnErrors = continueOnErrors;
+	}
+
+	/**
+	 * Mutator method Parallelism property
+	 * @param parallelism  Count of threads traversing directories
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Mutator method Lister property
+	 * @param lister  Supplies directory entries, null to always read the file system
+	 */
+	public void setLister(Lister lister) {
+		this.lister = lister;
+	}
+
+	/**
+	 * Accessor method for Filter property
+	 * @return  Filter pruning entries, null if none
+	 */
+	public Filter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Mutator method Filter property
+	 * @param filter  Prunes entries, null to visit all
+	 */
+	public void setFilter(Filter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Unit Test
+	 * @param args  Directory to traverse
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: <executable> <directory>");
+			System.exit(1);
+		}
+		String dir = args[0];
+		Notification notification = new Notification() {
+			@Override
+			public boolean onFile(File file) {
+				System.out.printf("FILE: %s\n", file.getAbsolutePath());
+				return true;
+			}
+			@Override
+			public boolean onDir(File file) {
+				System.out.printf("DIR : %s\n", file.getAbsolutePath());
+				return true;
+			}
+		};
+		try {
+			ParallelDirectoryWalker dw = new ParallelDirectoryWalker(dir);
+			dw.setContinueOnErrors(true);
+			dw.walk(notification);
+		} catch (Throwable t) {
+			System.err.println(t.toString());
+			System.exit(1);
+		}
+	}
+}
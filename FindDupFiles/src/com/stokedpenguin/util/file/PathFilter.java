@@ -0,0 +1,180 @@
+package com.stokedpenguin.util.file;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Prunes the entries of directory trees by name, size, type and file system.
+ * Name patterns are checked before the attributes of an entry are read, so
+ * excluded trees (like .git or node_modules) cost nothing but their name.
+ * Immutable once set up; within() makes the copy used for a tree.
+ * @author don
+ */
+public class PathFilter implements ParallelDirectoryWalker.Filter {
+	/** Globs matched against names, or against whole paths if they hold a separator */
+	private ArrayList<PathMatcher> nameGlobs = new ArrayList<PathMatcher>();
+	private ArrayList<PathMatcher> pathGlobs = new ArrayList<PathMatcher>();
+	/** Regular expressions found in whole paths */
+	private ArrayList<Pattern> regexes = new ArrayList<Pattern>();
+	/** Size range of files accepted, in bytes */
+	private long minSize = 0;
+	private long maxSize = Long.MAX_VALUE;
+	/** Name extensions of files accepted, lower case; empty for all */
+	private ArrayList<String> types = new ArrayList<String>();
+	/** Skip directories on another file system than the top directory */
+	private boolean oneFileSystem = false;
+	/** Device of the top directory, -1 until within() */
+	private long topDev = -1;
+	/** Options set, as command line arguments */
+	private ArrayList<String> options = new ArrayList<String>();
+
+	/**
+	 * Exclude entries matching a glob (see FileSystem.getPathMatcher), like
+	 * ".git" or "*.tmp". A glob holding a separator, like "/proc", is matched
+	 * against the whole path instead of the name.
+	 * @param glob
+	 */
+	public void addExclude(String glob) {
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+		if (glob.contains("/"))
+			pathGlobs.add(matcher);
+		else
+			nameGlobs.add(matcher);
+		options.add("--exclude " + glob);
+	}
+
+	/**
+	 * Exclude entries whose absolute path holds a match of a regular expression.
+	 * @param regex
+	 * @throws java.util.regex.PatternSyntaxException  if regex is invalid
+	 */
+	public void addExcludeRegex(String regex) {
+		regexes.add(Pattern.compile(regex));
+		options.add("--exclude-regex " + regex);
+	}
+
+	/**
+	 * @param minSize  Bytes of the smallest file accepted
+	 */
+	public void setMinSize(long minSize) {
+		this.minSize = minSize;
+		options.add("--min-size " + minSize);
+	}
+
+	/**
+	 * @param maxSize  Bytes of the largest file accepted
+	 */
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		options.add("--max-size " + maxSize);
+	}
+
+	/**
+	 * Accept only files named with a given extension, and those of the
+	 * other extensions added.
+	 * @param type  Name extension, like "jpg"
+	 */
+	public void addType(String type) {
+		types.add(type.toLowerCase(Locale.ROOT));
+		options.add("--type " + type);
+	}
+
+	/**
+	 * @param oneFileSystem  Skip directories on another file system than the top directory
+	 */
+	public void setOneFileSystem(boolean oneFileSystem) {
+		this.oneFileSystem = oneFileSystem;
+		if (oneFileSystem)
+			options.add("--one-file-system");
+	}
+
+	/**
+	 * @param top  Top directory of a tree
+	 * @return  Copy of this filter for traversing the tree
+	 * @throws IOException
+	 */
+	public PathFilter within(Path top) throws IOException {
+		PathFilter filter = new PathFilter();
+		filter.nameGlobs = nameGlobs;
+		filter.pathGlobs = pathGlobs;
+		filter.regexes = regexes;
+		filter.minSize = minSize;
+		filter.maxSize = maxSize;
+		filter.types = types;
+		filter.oneFileSystem = oneFileSystem;
+		filter.options = options;
+		if (oneFileSystem) {
+			FileIdentity identity = FileIdentity.read(top);
+			if (identity != null)
+				filter.topDev = identity.getDev();
+		}
+		return filter;
+	}
+
+	@Override
+	public boolean acceptPath(Path path) {
+		Path name = path.getFileName();
+		for (PathMatcher matcher : nameGlobs) {
+			if (name != null && matcher.matches(name))
+				return false;
+		}
+		for (PathMatcher matcher : pathGlobs) {
+			if (matcher.matches(path))
+				return false;
+		}
+		for (Pattern regex : regexes) {
+			if (regex.matcher(path.toString()).find())
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean accept(Path path, BasicFileAttributes attrs) throws IOException {
+		if (attrs.isRegularFile()) {
+			if (attrs.size() < minSize || attrs.size() > maxSize)
+				return false;
+			return types.isEmpty() || hasType(path);
+		}
+		if (attrs.isDirectory() && topDev != -1) {
+			// A mount point
+			FileIdentity identity = FileIdentity.of(path, attrs);
+			return identity == null || identity.getDev() == topDev;
+		}
+		return true;
+	}
+
+	/**
+	 * @param path
+	 * @return  True if the name of path has one of the types
+	 */
+	private boolean hasType(Path path) {
+		String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+		for (String type : types) {
+			if (name.endsWith("." + type))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return  True if no entry is filtered
+	 */
+	public boolean isEmpty() {
+		return options.isEmpty();
+	}
+
+	/**
+	 * @return  Options set, as command line arguments; empty if none
+	 */
+	@Override
+	public String toString() {
+		return String.join(" ", options);
+	}
+}
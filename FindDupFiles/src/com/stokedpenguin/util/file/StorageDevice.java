@@ -0,0 +1,99 @@
+package com.stokedpenguin.util.file;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Tells what kind of storage holds a file system: a spinning disk, solid
+ * state storage or a network file system, so reads can be scheduled to suit it.
+ * Block devices are looked up in Linux sysfs by device number; network file
+ * systems are told by their type. Other cases are UNKNOWN.
+ * Kinds are cached by device number. Thread safe.
+ * @author don
+ */
+public class StorageDevice {
+	/** Types of network file systems, see FileStore.type() */
+	private static final HashSet<String> networkTypes = new HashSet<String>(Arrays.asList(
+		"nfs", "nfs4", "cifs", "smb3", "smbfs", "ncpfs", "afs", "9p", "ceph", "glusterfs",
+		"fuse.sshfs", "fuse.glusterfs", "fuse.s3fs", "lustre", "gpfs"));
+	/** Types of file systems held in memory */
+	private static final HashSet<String> memoryTypes = new HashSet<String>(Arrays.asList(
+		"tmpfs", "ramfs"));
+	/** Kinds by device number */
+	private static final HashMap<Long, Kind> kinds = new HashMap<Long, Kind>();
+
+	public static enum Kind {
+		/** Spinning disk: seeks are slow, concurrent reads make them slower */
+		ROTATIONAL,
+		/** SSD, memory or another device without seek cost */
+		SOLID_STATE,
+		/** Network file system: latency is hidden by concurrent reads */
+		NETWORK,
+		UNKNOWN
+	}
+
+	/**
+	 * @param path  A file of the device
+	 * @param dev   Device number of path (see FileIdentity)
+	 * @return  Kind of storage holding path
+	 */
+	public static synchronized Kind classify(Path path, long dev) {
+		Kind kind = kinds.get(dev);
+		if (kind == null) {
+			kind = read(path, dev);
+			kinds.put(dev, kind);
+		}
+		return kind;
+	}
+
+	/**
+	 * @param path
+	 * @param dev
+	 * @return  Kind of storage holding path, found without the cache
+	 */
+	private static Kind read(Path path, long dev) {
+		try {
+			String type = Files.getFileStore(path).type();
+			if (networkTypes.contains(type))
+				return Kind.NETWORK;
+			if (memoryTypes.contains(type))
+				return Kind.SOLID_STATE;
+		} catch (IOException e) {
+			// Not found by type, try sysfs
+		}
+		Path block = Paths.get("/sys/dev/block", getMajor(dev) + ":" + getMinor(dev));
+		try {
+			Path rotational = block.resolve("queue/rotational");
+			// A partition has the queue of its disk
+			if (!Files.exists(rotational))
+				rotational = block.toRealPath().getParent().resolve("queue/rotational");
+			String value = new String(Files.readAllBytes(rotational), StandardCharsets.US_ASCII).trim();
+			return value.equals("1") ? Kind.ROTATIONAL : Kind.SOLID_STATE;
+		} catch (IOException e) {
+			// Not a block device (btrfs, overlay, ...) or not Linux
+			return Kind.UNKNOWN;
+		}
+	}
+
+	/**
+	 * @param dev  Device number, as encoded by Linux
+	 * @return  Major device number
+	 */
+	public static long getMajor(long dev) {
+		return ((dev & 0xfff00L) >>> 8) | ((dev & 0xfffff00000000000L) >>> 32);
+	}
+
+	/**
+	 * @param dev  Device number, as encoded by Linux
+	 * @return  Minor device number
+	 */
+	public static long getMinor(long dev) {
+		return (dev & 0xffL) | ((dev & 0xffffff00000L) >>> 12);
+	}
+}
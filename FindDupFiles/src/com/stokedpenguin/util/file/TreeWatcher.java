@@ -0,0 +1,191 @@
+package com.stokedpenguin.util.file;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches every directory of directory trees for changes (see WatchService).
+ * Events are collected until the trees have been quiet for a while, so a
+ * file being written is reported once, after its last write.
+ * Directories created in a watched directory are watched too.
+ * Directories rejected by the filter of their tree are not watched.
+ * Not thread safe.
+ * @author don
+ */
+public class TreeWatcher {
+	/** Events are collected for at most this many quiet periods */
+	private static final int maxQuietPeriods = 10;
+	private WatchService service;
+	/** Watched directories by key */
+	private HashMap<WatchKey, Path> dirs = new HashMap<WatchKey, Path>();
+	/** Filters of the trees of the watched directories by key, may hold null */
+	private HashMap<WatchKey, ParallelDirectoryWalker.Filter> filters = new HashMap<WatchKey, ParallelDirectoryWalker.Filter>();
+	private int errorCount = 0;
+
+	/**
+	 * Changes collected by take()
+	 * @author don
+	 */
+	public static class Changes {
+		/** Entries created, modified or deleted, in the order first reported */
+		private Set<Path> paths = new LinkedHashSet<Path>();
+		/** Directories whose events were lost; their whole tree must be scanned again */
+		private Set<Path> overflows = new LinkedHashSet<Path>();
+
+		public Set<Path> getPaths() {
+			return paths;
+		}
+
+		public Set<Path> getOverflows() {
+			return overflows;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @throws IOException
+	 */
+	public TreeWatcher() throws IOException {
+		service = FileSystems.getDefault().newWatchService();
+	}
+
+	/**
+	 * Watch every directory of a tree.
+	 * Directories that can't be watched are reported and counted as errors.
+	 * @param top  Top directory of tree
+	 * @throws IOException
+	 */
+	public void register(Path top) throws IOException {
+		register(top, null);
+	}
+
+	/**
+	 * Watch the directories of a tree accepted by a filter.
+	 * Directories that can't be watched are reported and counted as errors.
+	 * @param top     Top directory of tree, watched whatever the filter
+	 * @param filter  Prunes the tree, may be null
+	 * @throws IOException
+	 */
+	public void register(final Path top, final ParallelDirectoryWalker.Filter filter) throws IOException {
+		Files.walkFileTree(top, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+			new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					try {
+						if (filter != null && !dir.equals(top)
+								&& !(filter.acceptPath(dir) && filter.accept(dir, attrs)))
+							return FileVisitResult.SKIP_SUBTREE;
+						// Not walked, see ParallelDirectoryWalker
+						if (!dir.equals(top) && Files.isSymbolicLink(dir))
+							return FileVisitResult.SKIP_SUBTREE;
+						WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+						dirs.put(key, dir);
+						filters.put(key, filter);
+					} catch (Exception e) {
+						fail(dir, e);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					fail(file, e);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+	}
+
+	/**
+	 * Wait for changes, then collect them until none is reported for quietMillis.
+	 * @param quietMillis  Milliseconds without events ending the collection
+	 * @return  Changes collected
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public Changes take(long quietMillis) throws InterruptedException, IOException {
+		Changes changes = new Changes();
+		WatchKey key = service.take();
+		long deadline = System.currentTimeMillis() + quietMillis * maxQuietPeriods;
+		while (key != null) {
+			collect(key, changes);
+			if (System.currentTimeMillis() >= deadline)
+				break;
+			key = service.poll(quietMillis, TimeUnit.MILLISECONDS);
+		}
+		return changes;
+	}
+
+	/**
+	 * Add the events of a key to changes and watch the directories created.
+	 * @param key
+	 * @param changes
+	 * @throws IOException
+	 */
+	private void collect(WatchKey key, Changes changes) throws IOException {
+		Path dir = dirs.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (dir == null)
+				continue;
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				changes.overflows.add(dir);
+				continue;
+			}
+			Path path = dir.resolve((Path) event.context());
+			changes.paths.add(path);
+			ParallelDirectoryWalker.Filter filter = filters.get(key);
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)
+					&& (filter == null || filter.acceptPath(path)))
+				register(path, filter);
+		}
+		// Invalid once the directory is deleted
+		if (!key.reset()) {
+			dirs.remove(key);
+			filters.remove(key);
+		}
+	}
+
+	private void fail(Path path, Exception e) {
+		System.err.println("ERROR: directory not watched: " + path + " " + e.getMessage());
+		errorCount++;
+	}
+
+	/**
+	 * @return  Count of directories watched
+	 */
+	public int getCount() {
+		return dirs.size();
+	}
+
+	/**
+	 * Accessor method for ErrorCount property
+	 * @return
+	 */
+	public int getErrorCount() {
+		return errorCount;
+	}
+
+	/**
+	 * Stop watching.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		service.close();
+	}
+}